@@ -0,0 +1,71 @@
+package com.marklogic.pulsar;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+import org.apache.pulsar.functions.api.Record;
+
+/**
+ * Test data for the benchmarks: JSON customer documents padded with orders to a given size, and records that carry
+ * the topic metadata the id strategies read.
+ */
+public class BenchmarkPayloads {
+
+	public static byte[] customer(int id, int size) {
+		StringBuilder json = new StringBuilder(size + 256)
+				.append("{\"Customer\":{\"id\":").append(id)
+				.append(",\"name\":\"Customer ").append(id).append('"')
+				.append(",\"email\":\"customer").append(id).append("@example.com\"")
+				.append(",\"orders\":[");
+		int order = 0;
+		while (json.length() < size - 4) {
+			if (order > 0) {
+				json.append(',');
+			}
+			json.append("{\"orderId\":").append(order)
+					.append(",\"sku\":\"SKU-").append(order % 977)
+					.append("\",\"quantity\":").append(order % 7 + 1)
+					.append(",\"price\":").append(order % 100).append(".99}");
+			order++;
+		}
+		return json.append("]}}").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	public static class BenchmarkRecord implements Record<byte[]> {
+		private final byte[] value;
+		private final long sequence;
+
+		public BenchmarkRecord(byte[] value, long sequence) {
+			this.value = value;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public byte[] getValue() {
+			return value;
+		}
+
+		@Override
+		public Optional<String> getTopicName() {
+			return Optional.of("persistent://public/default/customers");
+		}
+
+		@Override
+		public Optional<String> getPartitionId() {
+			return Optional.of("0");
+		}
+
+		@Override
+		public Optional<Long> getRecordSequence() {
+			return Optional.of(sequence);
+		}
+
+		@Override
+		public void ack() {
+		}
+
+		@Override
+		public void fail() {
+		}
+	}
+}
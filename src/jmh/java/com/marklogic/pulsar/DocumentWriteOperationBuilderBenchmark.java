@@ -0,0 +1,65 @@
+package com.marklogic.pulsar;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.marklogic.client.document.DocumentWriteOperation;
+import com.marklogic.client.io.BytesHandle;
+import com.marklogic.client.io.DocumentMetadataHandle;
+import com.marklogic.client.io.Format;
+import com.marklogic.pulsar.database.DocumentWriteOperationBuilder;
+import com.marklogic.pulsar.database.RecordContent;
+
+/**
+ * DocumentWriteOperationBuilder.build with the metadata template alone, with a per-record topic collection, and
+ * with the template sent as WriteBatcher default metadata.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DocumentWriteOperationBuilderBenchmark {
+
+	@Param({"TEMPLATE", "TOPIC_COLLECTION", "DEFAULT_METADATA"})
+	public String metadata;
+
+	private DocumentWriteOperationBuilder builder;
+	private BytesHandle content;
+	private long id;
+
+	@Setup
+	public void setUp() {
+		builder = new DocumentWriteOperationBuilder()
+				.withCollections("customers,pulsar,ingested")
+				.withPermissions("rest-reader,read,rest-writer,update,customer-admin,update")
+				.withUriPrefix("/customer/")
+				.withUriSuffix(".json")
+				.withTemplateAsDefaultMetadata("DEFAULT_METADATA".equals(metadata));
+		content = new BytesHandle(BenchmarkPayloads.customer(10001, 1024)).withFormat(Format.JSON);
+	}
+
+	@Benchmark
+	public DocumentWriteOperation build() throws IOException {
+		RecordContent record = new RecordContent();
+		record.setContent(content);
+		record.setId(Long.toString(id++));
+		if (!"TEMPLATE".equals(metadata)) {
+			record.setAdditionalMetadata(new DocumentMetadataHandle().withCollections("persistent://public/default/customers"));
+		}
+		return builder.build(record);
+	}
+}
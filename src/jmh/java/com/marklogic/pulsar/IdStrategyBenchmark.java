@@ -0,0 +1,61 @@
+package com.marklogic.pulsar;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.marklogic.client.io.BytesHandle;
+import com.marklogic.client.io.Format;
+import com.marklogic.pulsar.config.MarkLogicSinkConfig;
+import com.marklogic.pulsar.id.strategy.IdStrategy;
+import com.marklogic.pulsar.id.strategy.IdStrategyFactory;
+
+/**
+ * Each id strategy and hash algorithm on its own, at the payload sizes the sink sees.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class IdStrategyBenchmark {
+
+	@Param({"1024", "65536", "1048576"})
+	public int payloadSize;
+
+	@Param({"UUID", "HASH", "JSONPATH", "PULSAR_META_WITH_SLASH", "PULSAR_META_HASHED"})
+	public String idStrategy;
+
+	@Param({"MD5", "MURMUR3_128"})
+	public String hashAlgorithm;
+
+	private IdStrategy strategy;
+	private BytesHandle content;
+	private long offset;
+
+	@Setup
+	public void setUp() {
+		MarkLogicSinkConfig config = new MarkLogicSinkConfig();
+		config.setMlIdStrategyForURI(idStrategy);
+		config.setMlIdStrategyPath("/Customer/id,/Customer/email");
+		config.setMlIdHashAlgorithm(hashAlgorithm);
+		strategy = IdStrategyFactory.getIdStrategy(config);
+		content = new BytesHandle(BenchmarkPayloads.customer(10001, payloadSize)).withFormat(Format.JSON);
+	}
+
+	@Benchmark
+	public String generateId() {
+		return strategy.generateId(content, "persistent://public/default/customers", "0", offset++);
+	}
+}
@@ -0,0 +1,76 @@
+package com.marklogic.pulsar;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.marklogic.client.io.Format;
+import com.marklogic.pulsar.config.MarkLogicSinkConfig;
+import com.marklogic.pulsar.database.DocumentWriteOperationBuilder;
+import com.marklogic.pulsar.id.strategy.IdStrategyFactory;
+
+/**
+ * MarkLogicSink.write from a Pulsar record to an operation added to the WriteBatcher, with an in-memory
+ * WriteBatcher so only the connector's own work is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SinkWriteBenchmark {
+
+	@Param({"1024", "65536", "1048576"})
+	public int payloadSize;
+
+	@Param({"UUID", "HASH", "JSONPATH", "PULSAR_META_HASHED"})
+	public String idStrategy;
+
+	@Param({"false", "true"})
+	public boolean addTopicAsCollection;
+
+	@Param({"0", "100"})
+	public int writeBufferSize;
+
+	private MarkLogicSink sink;
+	private byte[] payload;
+	private long sequence;
+
+	@Setup
+	public void setUp() {
+		MarkLogicSinkConfig config = new MarkLogicSinkConfig();
+		config.setMlIdStrategyForURI(idStrategy);
+		config.setMlIdStrategyPath("/Customer/id,/Customer/email");
+		config.setMlDocumentFormat("JSON");
+
+		sink = new MarkLogicSink();
+		sink.setMlConfig(config);
+		sink.setWriteBatcher(new MockWriteBatcher());
+		sink.setIdStrategy(IdStrategyFactory.getIdStrategy(config));
+		sink.setDocumentFormat(Format.JSON);
+		sink.setAddTopicAsCollection(addTopicAsCollection);
+		sink.setWriteBufferSize(writeBufferSize);
+		sink.setDocumentWriteOperationBuilder(new DocumentWriteOperationBuilder()
+				.withCollections("customers,pulsar")
+				.withPermissions("rest-reader,read,rest-writer,update")
+				.withUriPrefix("/customer/")
+				.withUriSuffix(".json"));
+		payload = BenchmarkPayloads.customer(10001, payloadSize);
+	}
+
+	@Benchmark
+	public void write() {
+		sink.write(new BenchmarkPayloads.BenchmarkRecord(payload, sequence++));
+	}
+}
@@ -0,0 +1,53 @@
+package com.marklogic.pulsar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The DHF sourceQuery built from the URIs of a batch, in both formats, for batch and coalesced flow sizes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SourceQueryBenchmark {
+
+	@Param({"100", "1000", "10000"})
+	public int uriCount;
+
+	@Param({"false", "true"})
+	public boolean serialized;
+
+	private RunFlowWriteBatchListener listener;
+	private List<String> uris;
+
+	@Setup
+	public void setUp() {
+		listener = new RunFlowWriteBatchListener("benchmarkFlow", null, null);
+		listener.setSerializedSourceQuery(serialized);
+		uris = new ArrayList<>(uriCount);
+		for (int i = 0; i < uriCount; i++) {
+			uris.add("/customer/" + (10000 + i) + "-O'Brien.json");
+		}
+	}
+
+	@Benchmark
+	public String buildSourceQuery() {
+		return listener.buildSourceQuery(uris);
+	}
+}
@@ -0,0 +1,152 @@
+package com.marklogic.pulsar;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.marklogic.client.datamovement.WriteBatch;
+import com.marklogic.client.datamovement.WriteFailureListener;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A WriteBatcher failure listener that retries failed batches on its own scheduler, so the DMSDK write threads
+ * are never held up by a batch waiting to be retried. Retries back off exponentially from the initial delay up to
+ * the maximum, each delay randomized between half and all of its value so that batches failing together are not
+ * retried together. A batch that still fails after the last attempt is passed to the exhausted listener.
+ */
+@Slf4j
+public class BatchRetryHandler implements WriteFailureListener {
+
+	private final int maxAttempts;
+	private final long initialBackoffMillis;
+	private final long maxBackoffMillis;
+	private final WriteFailureListener exhaustedListener;
+	private final ScheduledThreadPoolExecutor scheduler;
+	// Batches waiting for their next attempt, so they can be handed to the exhausted listener on shutdown.
+	private final Set<WriteBatch> waiting = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger pending = new AtomicInteger();
+	private MetricsReporter metrics;
+
+	public BatchRetryHandler(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis, int threadCount,
+			WriteFailureListener exhaustedListener) {
+		if (maxAttempts < 0 || initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis || threadCount < 1) {
+			throw new IllegalArgumentException("Invalid retry settings: attempts " + maxAttempts + ", backoff "
+					+ initialBackoffMillis + " to " + maxBackoffMillis + "ms, threads " + threadCount);
+		}
+		this.maxAttempts = maxAttempts;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+		this.exhaustedListener = exhaustedListener;
+		this.scheduler = new ScheduledThreadPoolExecutor(threadCount,
+				new ThreadFactoryBuilder().setNameFormat("marklogic-sink-retry-%d").setDaemon(true).build());
+		// Retries still waiting at shutdown are handed to the exhausted listener instead.
+		this.scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	}
+
+	public BatchRetryHandler withMetrics(MetricsReporter metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	@Override
+	public void processFailure(WriteBatch batch, Throwable failure) {
+		log.warn("Marklogic Connector::Batch {} Failed. {}", batch.getJobBatchNumber(), failure.getMessage());
+		schedule(batch, 1, failure);
+	}
+
+	/*
+	 * The delay before the given attempt: initial * 2^(attempt - 1), capped at the maximum, then randomized.
+	 */
+	long backoffMillis(int attempt) {
+		long backoff = initialBackoffMillis << Math.min(attempt - 1, 30);
+		if (backoff > maxBackoffMillis || backoff < 0) {
+			backoff = maxBackoffMillis;
+		}
+		long half = backoff / 2;
+		return half + ThreadLocalRandom.current().nextLong(backoff - half + 1);
+	}
+
+	private void schedule(WriteBatch batch, int attempt, Throwable failure) {
+		if (attempt > maxAttempts) {
+			exhausted(batch, failure);
+			return;
+		}
+		pending.incrementAndGet();
+		waiting.add(batch);
+		try {
+			scheduler.schedule(() -> retry(batch, attempt), backoffMillis(attempt), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			pending.decrementAndGet();
+			if (waiting.remove(batch)) {
+				exhausted(batch, failure);
+			}
+		}
+	}
+
+	private void retry(WriteBatch batch, int attempt) {
+		try {
+			if (!waiting.remove(batch)) {
+				return;
+			}
+			if (metrics != null) {
+				metrics.increment("batch_retries");
+			}
+			try {
+				batch.getBatcher().retry(batch);
+				log.info("Marklogic Connector::Batch {} written on retry {}", batch.getJobBatchNumber(), attempt);
+			} catch (Exception e) {
+				log.warn("Marklogic Connector::Batch {} Failed on retry {} of {}. {}", batch.getJobBatchNumber(), attempt,
+						maxAttempts, e.getMessage());
+				schedule(batch, attempt + 1, e);
+			}
+		} finally {
+			pending.decrementAndGet();
+		}
+	}
+
+	private void exhausted(WriteBatch batch, Throwable failure) {
+		if (metrics != null) {
+			metrics.increment("batches_exhausted");
+		}
+		try {
+			exhaustedListener.processFailure(batch, failure);
+		} catch (Exception e) {
+			log.error("Marklogic Connector::Unable to handle failed batch {}. {}", batch.getJobBatchNumber(), e.getMessage());
+		}
+	}
+
+	/**
+	 * The number of batches waiting for or in the middle of a retry.
+	 */
+	public int getPendingRetries() {
+		return pending.get();
+	}
+
+	/**
+	 * Waits up to the timeout for pending retries to finish. Batches still waiting after that are not retried
+	 * again and go to the exhausted listener.
+	 *
+	 * @return true if every retry finished in time
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (pending.get() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(50);
+		}
+		scheduler.shutdown();
+		boolean finished = pending.get() == 0;
+		for (WriteBatch batch : waiting) {
+			if (waiting.remove(batch)) {
+				exhausted(batch, new IllegalStateException("The sink closed before the batch could be retried"));
+			}
+		}
+		scheduler.awaitTermination(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+		return finished;
+	}
+}
@@ -0,0 +1,92 @@
+package com.marklogic.pulsar;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.pulsar.client.api.ClientBuilder;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.Schema;
+
+import com.marklogic.client.datamovement.WriteBatch;
+import com.marklogic.client.datamovement.WriteEvent;
+import com.marklogic.client.io.marker.AbstractWriteHandle;
+import com.marklogic.client.io.marker.BufferableHandle;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Publishes the documents of a batch that could not be written to MarkLogic to a dead-letter topic. Each message
+ * carries the document content as it would have been written, keyed by its URI, with the URI, the batch number
+ * and the error as properties.
+ */
+@Slf4j
+public class DeadLetterPublisher implements Closeable {
+
+	private final PulsarClient client;
+	private final Producer<byte[]> producer;
+
+	public DeadLetterPublisher(ClientBuilder clientBuilder, String topic) throws PulsarClientException {
+		client = clientBuilder.build();
+		try {
+			producer = client.newProducer(Schema.BYTES).topic(topic).create();
+		} catch (PulsarClientException e) {
+			client.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return true if every document of the batch reached the dead-letter topic
+	 */
+	public boolean publish(WriteBatch batch, Throwable failure) {
+		String error = String.valueOf(failure != null ? failure.getMessage() : null);
+		List<CompletableFuture<MessageId>> sends = new ArrayList<>();
+		boolean published = true;
+		for (WriteEvent event : WriteBatchDocuments.of(batch)) {
+			byte[] content = toBytes(event.getContent());
+			if (content == null) {
+				log.error("Marklogic Connector::Unable to dead-letter {}, its content cannot be read back", event.getTargetUri());
+				published = false;
+				continue;
+			}
+			sends.add(producer.newMessage()
+					.key(event.getTargetUri())
+					.value(content)
+					.property("uri", event.getTargetUri())
+					.property("jobBatchNumber", String.valueOf(batch.getJobBatchNumber()))
+					.property("error", error)
+					.sendAsync());
+		}
+		for (CompletableFuture<MessageId> send : sends) {
+			try {
+				send.join();
+			} catch (Exception e) {
+				log.error("Marklogic Connector::Unable to publish to the dead-letter topic. {}", e.getMessage());
+				published = false;
+			}
+		}
+		return published;
+	}
+
+	/*
+	 * The sink writes BytesHandle content, which can be read back as bytes.
+	 */
+	protected byte[] toBytes(AbstractWriteHandle content) {
+		if (content instanceof BufferableHandle) {
+			return ((BufferableHandle) content).toBuffer();
+		}
+		return null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		producer.close();
+		client.close();
+	}
+}
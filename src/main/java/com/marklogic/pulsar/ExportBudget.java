@@ -0,0 +1,93 @@
+package com.marklogic.pulsar;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the records and bytes that the source has read from MarkLogic but Pulsar has not yet acknowledged.
+ * QueryBatcher threads block in acquire while the budget is exhausted, which stops them from retrieving more
+ * URIs and documents, so an export runs in roughly constant memory however fast MarkLogic can serve it.
+ *
+ * A single document larger than the byte budget is still let through once nothing else is in flight.
+ */
+public class ExportBudget {
+
+	private final int maxRecords;
+	private final long maxBytes;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+	private int records;
+	private long bytes;
+
+	public ExportBudget(int maxRecords, long maxBytes) {
+		if (maxRecords < 1 || maxBytes < 1) {
+			throw new IllegalArgumentException("The export budget must allow at least one record and one byte");
+		}
+		this.maxRecords = maxRecords;
+		this.maxBytes = maxBytes;
+	}
+
+	public void acquire(long size) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (records >= maxRecords || (records > 0 && bytes + size > maxBytes)) {
+				released.await();
+			}
+			records++;
+			bytes += size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void release(long size) {
+		lock.lock();
+		try {
+			records--;
+			bytes -= size;
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until every record read so far has been acked or failed.
+	 *
+	 * @return false if records were still in flight after the timeout
+	 */
+	public boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+		long remaining = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (records > 0) {
+				if (remaining <= 0) {
+					return false;
+				}
+				remaining = released.awaitNanos(remaining);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getRecords() {
+		lock.lock();
+		try {
+			return records;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getBytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
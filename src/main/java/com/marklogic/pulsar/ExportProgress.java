@@ -0,0 +1,173 @@
+package com.marklogic.pulsar;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Tracks how far an export has got, so that a restarted task can carry on from there instead of starting over.
+ *
+ * A QueryBatcher reads the URIs of each forest in order, one numbered batch after another, but the batches are
+ * processed in parallel and their records are acknowledged by Pulsar in any order. For every forest this keeps
+ * the last URI of the highest batch that, along with all the batches before it, has had every record
+ * acknowledged. Everything up to that URI is safely in Pulsar.
+ */
+public class ExportProgress {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private final State state;
+	private final Map<String, ForestProgress> forests = new HashMap<>();
+	private boolean changed;
+	private boolean started;
+
+	public ExportProgress(State state) {
+		this.state = state;
+		for (String forest : state.getForests()) {
+			forests.put(forest, new ForestProgress());
+		}
+	}
+
+	/**
+	 * Registers a batch of URIs retrieved from a forest. Records are attached to the batch as they are exported,
+	 * and the batch counts as done once it is sealed and all of its records are acknowledged. A batch that
+	 * exported fewer records than it had URIs, or that failed, never counts as done. The first batch of a run
+	 * records the timestamp the run reads at, replacing that of the run it resumes.
+	 */
+	public Batch startBatch(String forest, long forestBatchNumber, String[] uris, long serverTimestamp) {
+		synchronized (this) {
+			forests.computeIfAbsent(forest, f -> new ForestProgress());
+			if (!started) {
+				started = true;
+				if (state.getServerTimestamp() != serverTimestamp) {
+					state.setServerTimestamp(serverTimestamp);
+					changed = true;
+				}
+			}
+		}
+		return new Batch(forest, forestBatchNumber, uris.length, uris.length > 0 ? uris[uris.length - 1] : null);
+	}
+
+	synchronized void complete(String forest, long forestBatchNumber, String lastUri) {
+		ForestProgress progress = forests.get(forest);
+		progress.completed.put(forestBatchNumber, lastUri);
+		while (progress.completed.containsKey(progress.next)) {
+			String uri = progress.completed.remove(progress.next);
+			if (uri != null) {
+				state.getLastUris().put(forest, uri);
+				changed = true;
+			}
+			progress.next++;
+		}
+	}
+
+	/**
+	 * The URI watermark of a forest, below which every document of the forest has been exported. Null if the
+	 * forest has not completed its first batch, which is also the case for a forest with no matching documents.
+	 */
+	public synchronized String getResumeAfter(String forest) {
+		return state.getLastUris().get(forest);
+	}
+
+	/**
+	 * Where each forest of the export resumes: after its own watermark, or from the beginning when it has none.
+	 */
+	public static Map<String, String> getResumePoints(State state) {
+		Map<String, String> resumePoints = new LinkedHashMap<>();
+		for (String forest : state.getForests()) {
+			resumePoints.put(forest, state.getLastUris().get(forest));
+		}
+		return resumePoints;
+	}
+
+	/**
+	 * Returns the serialized state if it changed since the last call, otherwise null.
+	 */
+	public synchronized byte[] takeChangedState() throws IOException {
+		if (!changed) {
+			return null;
+		}
+		changed = false;
+		return MAPPER.writeValueAsBytes(state);
+	}
+
+	public static State readState(byte[] bytes) throws IOException {
+		return MAPPER.readValue(bytes, State.class);
+	}
+
+	/*
+	 * Forest batch numbers start at 1.
+	 */
+	private static class ForestProgress {
+		private final TreeMap<Long, String> completed = new TreeMap<>();
+		private long next = 1;
+	}
+
+	public class Batch {
+
+		private final String forest;
+		private final long forestBatchNumber;
+		private final int size;
+		private final String lastUri;
+		// One for the batch itself until it is sealed, plus one per record not yet acknowledged.
+		private final AtomicInteger outstanding = new AtomicInteger(1);
+		private final AtomicInteger started = new AtomicInteger();
+		private volatile boolean failed;
+
+		Batch(String forest, long forestBatchNumber, int size, String lastUri) {
+			this.forest = forest;
+			this.forestBatchNumber = forestBatchNumber;
+			this.size = size;
+			this.lastUri = lastUri;
+		}
+
+		public void recordStarted() {
+			started.incrementAndGet();
+			outstanding.incrementAndGet();
+		}
+
+		public void recordDone() {
+			if (outstanding.decrementAndGet() == 0 && !failed) {
+				complete(forest, forestBatchNumber, lastUri);
+			}
+		}
+
+		public void fail() {
+			failed = true;
+		}
+
+		/**
+		 * Called once every document of the batch has been handed to Pulsar.
+		 */
+		public void seal() {
+			if (started.get() < size) {
+				failed = true;
+			}
+			recordDone();
+		}
+	}
+
+	/**
+	 * What is kept in Pulsar state between runs: the query of the export, the incremental checkpoint it will
+	 * save when done, the snapshot it was started at, and the URI watermark of each forest.
+	 */
+	@Data
+	@NoArgsConstructor
+	public static class State {
+		private String query;
+		private String checkpoint;
+		private long serverTimestamp;
+		private List<String> forests = new ArrayList<>();
+		private Map<String, String> lastUris = new HashMap<>();
+	}
+}
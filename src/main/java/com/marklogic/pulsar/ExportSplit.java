@@ -0,0 +1,42 @@
+package com.marklogic.pulsar;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A unit of export work handed out by MarkLogicSource.discover and run by whichever source instance receives it
+ * in prepare. A split with no forests covers the whole database; otherwise only the named forests are exported.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ExportSplit {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private String name;
+	private List<String> forests = new ArrayList<>();
+	// When the run the split belongs to was discovered, in epoch milliseconds; 0 for tasks from older versions.
+	private long discoveredAt;
+
+	@JsonIgnore
+	public boolean isWholeDatabase() {
+		return forests == null || forests.isEmpty();
+	}
+
+	public byte[] toBytes() throws IOException {
+		return MAPPER.writeValueAsBytes(this);
+	}
+
+	public static ExportSplit fromBytes(byte[] bytes) throws IOException {
+		return MAPPER.readValue(bytes, ExportSplit.class);
+	}
+}
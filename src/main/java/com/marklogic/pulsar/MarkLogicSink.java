@@ -5,26 +5,43 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import org.apache.pulsar.client.api.ClientBuilder;
+import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.client.api.PulsarClientException;
 import org.apache.pulsar.functions.api.Record;
 import org.apache.pulsar.io.core.Sink;
 import org.apache.pulsar.io.core.SinkContext;
 import org.apache.pulsar.io.core.annotations.Connector;
 import org.apache.pulsar.io.core.annotations.IOType;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.marklogic.client.DatabaseClient;
 import com.marklogic.client.datamovement.DataMovementManager;
+import com.marklogic.client.datamovement.WriteBatch;
 import com.marklogic.client.datamovement.WriteBatcher;
+import com.marklogic.client.datamovement.WriteEvent;
+import com.marklogic.client.document.DocumentWriteOperation;
 import com.marklogic.client.document.ServerTransform;
 import com.marklogic.client.ext.DatabaseClientConfig;
 import com.marklogic.client.ext.DefaultConfiguredDatabaseClientFactory;
+import com.marklogic.client.io.BytesHandle;
 import com.marklogic.client.io.DocumentMetadataHandle;
-import com.marklogic.client.io.StringHandle;
+import com.marklogic.client.io.Format;
 import com.marklogic.client.io.marker.AbstractWriteHandle;
 import com.marklogic.hub.DatabaseKind;
 import com.marklogic.hub.impl.HubConfigImpl;
@@ -55,18 +72,62 @@ public class MarkLogicSink implements Sink<byte[]> {
 	private WriteBatcher writeBatcher;
 	private DocumentWriteOperationBuilder documentWriteOperationBuilder;
 	private MarkLogicSinkConfig mlConfig;
+	private PendingRecordTracker pendingRecords;
+	private IdStrategy idStrategy;
+	private Format documentFormat;
+	private boolean addTopicAsCollection;
+	private RunFlowWriteBatchListener runFlowListener;
+	private BatchRetryHandler retryHandler;
+	private DeadLetterPublisher deadLetterPublisher;
+	private MetricsReporter metrics;
+	/*
+	 * The time one record in every batch-size was added to the WriteBatcher, by URI, so the add-to-commit latency
+	 * can be measured about once per batch without timing every record.
+	 */
+	private final ConcurrentMap<String, Long> sampledAddTimes = new ConcurrentHashMap<>();
+	private final AtomicLong addedRecords = new AtomicLong();
+	private int latencySampleInterval = 1;
+	/*
+	 * With a write buffer, records are collected and turned into write operations a buffer at a time, which are
+	 * then added to the WriteBatcher in one call instead of taking its lock once per record.
+	 */
+	private int writeBufferSize;
+	private boolean parallelBuild;
+	private List<Record<byte[]>> writeBuffer;
+	private final Object writeBufferLock = new Object();
+	private ScheduledExecutorService writeBufferFlusher;
 	
 	@Override
 	public void open(Map<String, Object> config, SinkContext sinkContext) throws Exception {
 		log.info("Opening MarkLogic Connection");
 		mlConfig = MarkLogicSinkConfig.load(config);
-		documentWriteOperationBuilder = new DocumentWriteOperationBuilder();
+		ClientBuilder deadLetterClient = buildDeadLetterClient(mlConfig);
+		/*
+		 * The builder is shared by every call to write, so everything it needs is configured here once.
+		 */
+		documentWriteOperationBuilder = new DocumentWriteOperationBuilder()
+				.withCollections(mlConfig.getMlDocumentCollections())
+				.withPermissions(mlConfig.getMlDocumentPermissions())
+				.withUriPrefix(mlConfig.getMlDocumentURIPrefix())
+				.withUriSuffix(mlConfig.getMlDocumentURISuffix());
+		addTopicAsCollection = Boolean.TRUE.equals(mlConfig.getMlAddTopicAsCollections());
+		final boolean useDefaultMetadata = Boolean.TRUE.equals(mlConfig.getMlUseDefaultMetadata());
+		documentWriteOperationBuilder.withTemplateAsDefaultMetadata(useDefaultMetadata);
+		idStrategy = IdStrategyFactory.getIdStrategy(mlConfig);
+		documentFormat = buildDocumentFormat(mlConfig);
 		DatabaseClientConfig databaseClientConfig = new DefaultDatabaseClientConfigBuilder()
 				.buildDatabaseClientConfig(mlConfig.getMarkLogicAbstractConfig());
 		databaseClient = new DefaultConfiguredDatabaseClientFactory().newDatabaseClient(databaseClientConfig);
 		
 		HubConfigImpl hubConfig = null;
 		
+		Long metricsInterval = mlConfig.getMlMetricsIntervalMillis();
+		if (metricsInterval == null || metricsInterval > 0) {
+			metrics = new MetricsReporter(sinkContext::recordMetric)
+					.start(metricsInterval != null ? metricsInterval : 60000L, "marklogic-sink-metrics-%d");
+			latencySampleInterval = Math.max(mlConfig.getDmsdkBatchSize(), 1);
+		}
+		
 		dataMovementManager = databaseClient.newDataMovementManager();
 		writeBatcher = dataMovementManager.newWriteBatcher().withJobName("MarkLogic Sink Connector Job")
 				.withBatchSize(mlConfig.getDmsdkBatchSize()).withThreadCount(mlConfig.getDmsdkThreadCount());
@@ -75,28 +136,74 @@ public class MarkLogicSink implements Sink<byte[]> {
 		if (transform != null) {
 			writeBatcher.withTransform(transform);
 		}
+		if (useDefaultMetadata) {
+			if (addTopicAsCollection) {
+				log.warn("mlUseDefaultMetadata has little effect with mlAddTopicAsCollections, as every document carries its topic collection");
+			}
+			writeBatcher.withDefaultMetadata(documentWriteOperationBuilder.buildDefaultMetadata());
+		}
+		
+		/*
+		 * In ack-on-commit mode records are held until the batch containing them is written, instead of
+		 * being acked as soon as they are added to the WriteBatcher.
+		 */
+		if (Boolean.TRUE.equals(mlConfig.getMlAckOnCommit())) {
+			log.info("Records will be acked only after their batch is written to MarkLogic");
+			pendingRecords = new PendingRecordTracker();
+		}
 		
 		writeBatcher.onBatchSuccess(batch -> {
+			if (pendingRecords != null) {
+				pendingRecords.ack(batch);
+			}
+			if (metrics != null) {
+				recordBatchWritten(batch);
+			}
 			if (log.isDebugEnabled()) {
-				log.info("Marklogic Connector::Batch {} wrote, {} at {}", batch.getJobBatchNumber(),
+				log.debug("Marklogic Connector::Batch {} wrote, {} at {}", batch.getJobBatchNumber(),
 						batch.getJobWritesSoFar(), batch.getTimestamp().getTime());
 			}
 		});
-		writeBatcher.onBatchFailure((batch, throwable) -> {
-			log.warn("Marklogic Connector::Batch Failed. Retrying" + throwable.getMessage());
-			try {
-				batch.getBatcher().retry(batch);
-			} catch (Exception e) {
-				log.warn("Marklogic Connector::Batch Failed on Retrying also." + e.getMessage());
+		if (deadLetterClient != null) {
+			deadLetterPublisher = new DeadLetterPublisher(deadLetterClient, mlConfig.getMlDeadLetterTopic().trim());
+			log.info("Batches that cannot be written will be published to {} on {}", mlConfig.getMlDeadLetterTopic().trim(),
+					mlConfig.getMlDeadLetterServiceUrl().trim());
+		}
+		retryHandler = buildRetryHandler(mlConfig).withMetrics(metrics);
+		if (metrics != null) {
+			writeBatcher.onBatchFailure((batch, throwable) -> metrics.increment("batches_failed"));
+			if (pendingRecords != null) {
+				metrics.gauge("pending_records", pendingRecords::size);
 			}
-		});
+			metrics.gauge("pending_retries", retryHandler::getPendingRetries);
+		}
+		writeBatcher.onBatchFailure(retryHandler);
 		/*
 		 * Build a success listener only if flow name is set. All DHF configurations will be ignored 
 		 * if a flowName is not configured.
 		 */
 		final String flowName = mlConfig.getDhfFlowName();
 		if (flowName != null && flowName.trim().length() > 0) {
-			writeBatcher.onBatchSuccess(buildSuccessListener(flowName, mlConfig, hubConfig));
+			runFlowListener = buildSuccessListener(flowName, mlConfig, hubConfig);
+			writeBatcher.onBatchSuccess(runFlowListener);
+			if (metrics != null) {
+				metrics.gauge("queued_flows", runFlowListener::getQueuedFlows);
+			}
+		}
+
+		Integer bufferSize = mlConfig.getMlWriteBufferSize();
+		if (bufferSize != null && bufferSize > 1) {
+			writeBufferSize = bufferSize;
+			parallelBuild = Boolean.TRUE.equals(mlConfig.getMlWriteBufferParallel());
+			Long maxDelay = mlConfig.getMlWriteBufferMaxDelayMillis();
+			long flushDelay = maxDelay != null && maxDelay > 0 ? maxDelay : 100L;
+			writeBufferFlusher = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactoryBuilder().setNameFormat("marklogic-sink-buffer-%d").setDaemon(true).build());
+			writeBufferFlusher.scheduleWithFixedDelay(this::flushWriteBuffer, flushDelay, flushDelay, TimeUnit.MILLISECONDS);
+			if (metrics != null) {
+				metrics.gauge("buffered_records", this::getBufferedRecords);
+			}
+			log.info("Records will be added to the WriteBatcher {} at a time, or at least every {} ms", writeBufferSize, flushDelay);
 		}
 
 		dataMovementManager.startJob(writeBatcher);
@@ -104,6 +211,71 @@ public class MarkLogicSink implements Sink<byte[]> {
 		return;
 	}
 	
+	/*
+	 * Dead letters are the only copy of a batch that gave up retrying, so they are never sent to a guessed
+	 * broker: a dead-letter topic needs its service URL, and the client gets the configured authentication and
+	 * TLS settings. Returns null when there is no dead-letter topic. Nothing connects until the client is built.
+	 */
+	protected ClientBuilder buildDeadLetterClient(MarkLogicSinkConfig mlConfig) throws PulsarClientException {
+		String topic = mlConfig.getMlDeadLetterTopic();
+		if (topic == null || topic.trim().length() == 0) {
+			return null;
+		}
+		String serviceUrl = mlConfig.getMlDeadLetterServiceUrl();
+		if (serviceUrl == null || serviceUrl.trim().length() == 0) {
+			throw new IllegalArgumentException("mlDeadLetterServiceUrl is required when mlDeadLetterTopic is set");
+		}
+		ClientBuilder builder = PulsarClient.builder().serviceUrl(serviceUrl.trim());
+		String authPlugin = mlConfig.getMlDeadLetterAuthPlugin();
+		if (authPlugin != null && authPlugin.trim().length() > 0) {
+			String authParams = mlConfig.getMlDeadLetterAuthParams();
+			builder.authentication(authPlugin.trim(), authParams != null ? authParams : "");
+		}
+		String trustCerts = mlConfig.getMlDeadLetterTlsTrustCertsFilePath();
+		if (trustCerts != null && trustCerts.trim().length() > 0) {
+			builder.tlsTrustCertsFilePath(trustCerts.trim());
+		}
+		builder.allowTlsInsecureConnection(Boolean.TRUE.equals(mlConfig.getMlDeadLetterTlsAllowInsecureConnection()));
+		builder.enableTlsHostnameVerification(Boolean.TRUE.equals(mlConfig.getMlDeadLetterTlsHostnameVerification()));
+		return builder;
+	}
+
+	/*
+	 * Failed batches are retried off the DMSDK threads. A batch that runs out of attempts goes to the dead-letter
+	 * topic if one is configured; its records are then acked, as their content is kept there. Otherwise they are
+	 * failed so that Pulsar redelivers them.
+	 */
+	protected BatchRetryHandler buildRetryHandler(MarkLogicSinkConfig mlConfig) {
+		Integer maxAttempts = mlConfig.getMlRetryMaxAttempts();
+		Long initialBackoff = mlConfig.getMlRetryInitialBackoffMillis();
+		Long maxBackoff = mlConfig.getMlRetryMaxBackoffMillis();
+		Integer threadCount = mlConfig.getMlRetryThreadCount();
+		return new BatchRetryHandler(
+				maxAttempts != null ? maxAttempts : 3,
+				initialBackoff != null ? initialBackoff : 1000L,
+				maxBackoff != null ? maxBackoff : 30000L,
+				threadCount != null && threadCount > 0 ? threadCount : 1,
+				(batch, failure) -> {
+					boolean deadLettered = deadLetterPublisher != null && deadLetterPublisher.publish(batch, failure);
+					List<WriteEvent> documents = WriteBatchDocuments.of(batch);
+					log.error("Marklogic Connector::Batch {} of {} documents could not be written{}. {}", batch.getJobBatchNumber(),
+							documents.size(), deadLettered ? " and was sent to the dead-letter topic" : "",
+							failure != null ? failure.getMessage() : "");
+					if (metrics != null) {
+						for (WriteEvent event : documents) {
+							sampledAddTimes.remove(event.getTargetUri());
+						}
+					}
+					if (pendingRecords != null) {
+						if (deadLettered) {
+							pendingRecords.ack(batch);
+						} else {
+							pendingRecords.fail(batch);
+						}
+					}
+				});
+	}
+
 	protected RunFlowWriteBatchListener buildSuccessListener(String flowName, MarkLogicSinkConfig mlConfig, HubConfigImpl hubConfig) {
 		String logMessage = String.format("After ingesting a batch, will run flow '%s'", flowName);
 		final String flowSteps = mlConfig.getDhfFlowSteps();
@@ -115,6 +287,19 @@ public class MarkLogicSink implements Sink<byte[]> {
 		log.info(logMessage);
 		hubConfig = buildHubConfig(mlConfig);
 		RunFlowWriteBatchListener listener = new RunFlowWriteBatchListener(flowName, steps, hubConfig);
+		listener.setSerializedSourceQuery("SERIALIZED".equalsIgnoreCase(mlConfig.getDhfFlowSourceQueryFormat()));
+		Integer flowThreadCount = mlConfig.getDhfFlowThreadCount();
+		if (flowThreadCount != null && flowThreadCount > 0) {
+			Integer flowQueueSize = mlConfig.getDhfFlowQueueSize();
+			listener.withFlowExecutor(flowThreadCount, flowQueueSize != null ? flowQueueSize : 10);
+			log.info("Flows will run on {} dedicated threads", flowThreadCount);
+		}
+		Integer flowBatchUriCount = mlConfig.getDhfFlowBatchUriCount();
+		if (flowBatchUriCount != null && flowBatchUriCount > 0) {
+			Long maxDelay = mlConfig.getDhfFlowBatchMaxDelayMillis();
+			listener.withCoalescing(flowBatchUriCount, maxDelay != null ? maxDelay : 1000L);
+			log.info("Flows will run once per {} URIs, or at least every {} ms", flowBatchUriCount, maxDelay != null ? maxDelay : 1000L);
+		}
 		return listener;
 	}
 
@@ -184,6 +369,14 @@ public class MarkLogicSink implements Sink<byte[]> {
 		
 	}
 	
+	protected Format buildDocumentFormat(MarkLogicSinkConfig mlConfig) {
+		String format = mlConfig.getMlDocumentFormat();
+		if (format != null && format.trim().length() > 0) {
+			return Format.valueOf(format.trim().toUpperCase());
+		}
+		return Format.UNKNOWN;
+	}
+	
 	protected ServerTransform buildServerTransform(final MarkLogicAbstractConfig mlConfig) {
 		String transform = mlConfig.getDmsdkTransform();
 		if (transform != null && transform.trim().length() > 0) {
@@ -216,47 +409,220 @@ public class MarkLogicSink implements Sink<byte[]> {
 
 	@Override
 	public void write(Record<byte[]> record) {
-		IdStrategy idStrategy = null;
-		final String recordValue = new String(record.getValue(), StandardCharsets.UTF_8);
+		if (writeBufferSize > 1) {
+			buffer(record);
+			return;
+		}
+		DocumentWriteOperation writeOperation = buildWriteOperation(record);
+		if (writeOperation == null) {
+			return;
+		}
+		try {
+			sampleAddTime(writeOperation);
+			if (pendingRecords != null) {
+				pendingRecords.track(writeOperation.getUri(), record);
+				writeBatcher.add(writeOperation);
+			} else {
+				writeBatcher.add(writeOperation);
+				record.ack();
+			}
+		} catch (Exception e) {
+			log.error("Error in Writing Record to MarkLogic::" + e.getMessage());
+			failAdded(writeOperation, record);
+		}
+	}
+
+	/*
+	 * Generates the URI and builds the write operation of a record. A record that cannot be built is failed here
+	 * and null is returned. Safe to call from several threads at once.
+	 */
+	protected DocumentWriteOperation buildWriteOperation(Record<byte[]> record) {
+		final byte[] recordValue = record.getValue();
 		RecordContent recordContent = new RecordContent();
 		if (log.isDebugEnabled()) {
-			log.debug("MarkLogic Connector received record: " + recordValue);
-		}
-		idStrategy = IdStrategyFactory.getIdStrategy(mlConfig);
-		AbstractWriteHandle content = toContent(recordValue);
-		DocumentMetadataHandle meta = new DocumentMetadataHandle();
-		documentWriteOperationBuilder.withCollections(mlConfig.getMlDocumentCollections());
-		documentWriteOperationBuilder.withUriPrefix(mlConfig.getMlDocumentURIPrefix());
-		documentWriteOperationBuilder.withUriSuffix(mlConfig.getMlDocumentURISuffix());
-		recordContent.setContent(content);
-		recordContent.setId(idStrategy.generateId(content, record.getTopicName().get(), record.getPartitionId().get(),
-				record.getRecordSequence().get()));
-		if (mlConfig.getMlAddTopicAsCollections()) {
-			recordContent.setAdditionalMetadata(meta.withCollections(record.getTopicName().get()));
+			log.debug("MarkLogic Connector received record: " + new String(recordValue, StandardCharsets.UTF_8));
 		}
 		try {
-			writeBatcher.add(documentWriteOperationBuilder.build(recordContent));
-			record.ack();
+			AbstractWriteHandle content = toContent(recordValue);
+			recordContent.setContent(content);
+			long idStart = metrics != null ? System.nanoTime() : 0;
+			recordContent.setId(idStrategy.generateId(content, record.getTopicName().get(), record.getPartitionId().get(),
+					record.getRecordSequence().get()));
+			if (metrics != null) {
+				metrics.increment("id_generation_nanos", System.nanoTime() - idStart);
+				metrics.increment("records_in");
+				metrics.increment("bytes_in", recordValue.length);
+			}
+			if (addTopicAsCollection) {
+				recordContent.setAdditionalMetadata(new DocumentMetadataHandle().withCollections(record.getTopicName().get()));
+			}
+			return documentWriteOperationBuilder.build(recordContent);
 		} catch (Exception e) {
 			log.error("Error in Writing Record to MarkLogic::" + e.getMessage());
+			if (metrics != null) {
+				metrics.increment("records_failed");
+			}
 			record.fail();
+			return null;
+		}
+	}
+
+	private void buffer(Record<byte[]> record) {
+		List<Record<byte[]>> full = null;
+		synchronized (writeBufferLock) {
+			if (writeBuffer == null) {
+				writeBuffer = new ArrayList<>(writeBufferSize);
+			}
+			writeBuffer.add(record);
+			if (writeBuffer.size() >= writeBufferSize) {
+				full = writeBuffer;
+				writeBuffer = new ArrayList<>(writeBufferSize);
+			}
+		}
+		if (full != null) {
+			writeAll(full);
+		}
+	}
+
+	/**
+	 * Adds whatever records are buffered to the WriteBatcher. Called on a timer so that records are not held back
+	 * at low message rates, and on close.
+	 */
+	public void flushWriteBuffer() {
+		List<Record<byte[]>> records;
+		synchronized (writeBufferLock) {
+			if (writeBuffer == null || writeBuffer.isEmpty()) {
+				return;
+			}
+			records = writeBuffer;
+			writeBuffer = new ArrayList<>(writeBufferSize);
+		}
+		try {
+			writeAll(records);
+		} catch (Exception e) {
+			log.error("Marklogic Connector::Unable to flush buffered records. {}", e.getMessage());
+		}
+	}
+
+	public int getBufferedRecords() {
+		synchronized (writeBufferLock) {
+			return writeBuffer != null ? writeBuffer.size() : 0;
 		}
-		
 	}
 
-	protected AbstractWriteHandle toContent(String recordValue) {
-		StringHandle content = new StringHandle(recordValue);
+	/*
+	 * Builds the operations of the records, in parallel if configured, and adds them to the WriteBatcher together.
+	 * If adding them fails, every record that was built is failed.
+	 */
+	protected void writeAll(List<Record<byte[]>> records) {
+		final DocumentWriteOperation[] writeOperations = new DocumentWriteOperation[records.size()];
+		IntStream indexes = IntStream.range(0, writeOperations.length);
+		(parallelBuild ? indexes.parallel() : indexes)
+				.forEach(i -> writeOperations[i] = buildWriteOperation(records.get(i)));
+		try {
+			for (int i = 0; i < writeOperations.length; i++) {
+				if (writeOperations[i] != null) {
+					sampleAddTime(writeOperations[i]);
+					if (pendingRecords != null) {
+						pendingRecords.track(writeOperations[i].getUri(), records.get(i));
+					}
+				}
+			}
+			writeBatcher.addAll(Arrays.stream(writeOperations).filter(Objects::nonNull));
+		} catch (Exception e) {
+			log.error("Error in Writing {} Records to MarkLogic::{}", records.size(), e.getMessage());
+			for (int i = 0; i < writeOperations.length; i++) {
+				if (writeOperations[i] != null) {
+					failAdded(writeOperations[i], records.get(i));
+				}
+			}
+			return;
+		}
+		if (pendingRecords == null) {
+			for (int i = 0; i < writeOperations.length; i++) {
+				if (writeOperations[i] != null) {
+					records.get(i).ack();
+				}
+			}
+		}
+	}
+
+	private void sampleAddTime(DocumentWriteOperation writeOperation) {
+		if (metrics != null && addedRecords.getAndIncrement() % latencySampleInterval == 0) {
+			sampledAddTimes.put(writeOperation.getUri(), System.nanoTime());
+		}
+	}
+
+	private void failAdded(DocumentWriteOperation writeOperation, Record<byte[]> record) {
+		if (metrics != null) {
+			metrics.increment("records_failed");
+			sampledAddTimes.remove(writeOperation.getUri());
+		}
+		if (pendingRecords != null) {
+			pendingRecords.untrack(writeOperation.getUri(), record);
+		}
+		record.fail();
+	}
+
+	protected void recordBatchWritten(WriteBatch batch) {
+		metrics.increment("batches_written");
+		List<WriteEvent> documents = WriteBatchDocuments.of(batch);
+		metrics.increment("documents_written", documents.size());
+		long now = System.nanoTime();
+		for (WriteEvent event : documents) {
+			Long addedAt = sampledAddTimes.remove(event.getTargetUri());
+			if (addedAt != null) {
+				metrics.record("write_latency_ms", (now - addedAt) / 1_000_000.0);
+			}
+		}
+	}
+
+	/*
+	 * Passes the Pulsar payload through without decoding it; the client sends the bytes as they are.
+	 */
+	protected AbstractWriteHandle toContent(byte[] recordValue) {
+		BytesHandle content = new BytesHandle(recordValue);
+		if (documentFormat != null) {
+			content.setFormat(documentFormat);
+		}
+		String mimeType = mlConfig != null ? mlConfig.getMlDocumentMimeType() : null;
+		if (mimeType != null && mimeType.trim().length() > 0) {
+			content.setMimetype(mimeType.trim());
+		}
 		return content;
 	}
 
 	@Override
 	public void close() throws Exception {
+		if (writeBufferFlusher != null) {
+			writeBufferFlusher.shutdown();
+			writeBufferFlusher.awaitTermination(1, TimeUnit.MINUTES);
+		}
 		if (writeBatcher != null) {
+			flushWriteBuffer();
 			writeBatcher.flushAndWait();
+		}
+		if (retryHandler != null && !retryHandler.shutdown(1, TimeUnit.MINUTES)) {
+			log.warn("Timed out waiting for failed batches to be retried");
+		}
+		if (writeBatcher != null) {
 			dataMovementManager.stopJob(writeBatcher);
 		}
+		if (runFlowListener != null && !runFlowListener.shutdown(5, TimeUnit.MINUTES)) {
+			log.warn("Timed out waiting for DHF flows to finish; {} flows were still queued", runFlowListener.getQueuedFlows());
+		}
+		if (pendingRecords != null && pendingRecords.size() > 0) {
+			log.warn("Failing {} records that were not written to MarkLogic before close", pendingRecords.size());
+			pendingRecords.failAll();
+		}
+		if (deadLetterPublisher != null) {
+			deadLetterPublisher.close();
+		}
+		if (metrics != null) {
+			metrics.stop();
+		}
 		if (databaseClient != null) {
 			databaseClient.release();
 		}
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -1,10 +1,31 @@
 package com.marklogic.pulsar;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import javax.xml.namespace.QName;
 
 import org.apache.pulsar.functions.api.Record;
 import org.apache.pulsar.io.core.BatchPushSource;
@@ -12,16 +33,26 @@ import org.apache.pulsar.io.core.SourceContext;
 import org.apache.pulsar.io.core.annotations.Connector;
 import org.apache.pulsar.io.core.annotations.IOType;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.marklogic.client.DatabaseClient;
 import com.marklogic.client.datamovement.DataMovementManager;
 import com.marklogic.client.datamovement.ExportListener;
+import com.marklogic.client.datamovement.Forest;
+import com.marklogic.client.datamovement.ForestConfiguration;
 import com.marklogic.client.datamovement.JobReport;
 import com.marklogic.client.datamovement.JobTicket;
 import com.marklogic.client.datamovement.ProgressListener;
 import com.marklogic.client.datamovement.QueryBatcher;
+import com.marklogic.client.document.DocumentManager;
+import com.marklogic.client.document.DocumentRecord;
 import com.marklogic.client.document.ServerTransform;
+import com.marklogic.client.eval.ServerEvaluationCall;
 import com.marklogic.client.ext.DatabaseClientConfig;
 import com.marklogic.client.ext.DefaultConfiguredDatabaseClientFactory;
+import com.marklogic.client.io.BytesHandle;
+import com.marklogic.client.io.DocumentMetadataHandle;
 import com.marklogic.client.io.Format;
 import com.marklogic.client.io.StringHandle;
 import com.marklogic.client.query.QueryManager;
@@ -30,7 +61,11 @@ import com.marklogic.pulsar.config.MarkLogicAbstractConfig;
 import com.marklogic.pulsar.config.MarkLogicSourceConfig;
 import com.marklogic.pulsar.database.DefaultDatabaseClientConfigBuilder;
 
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -46,6 +81,34 @@ public class MarkLogicSource extends BatchPushSource<byte[]> implements Runnable
 	private MarkLogicSourceConfig mlConfig;
 	private SourceContext sourceContext;
 	private QueryManager queryMgr;
+	private ExportBudget exportBudget;
+	private String incrementalMode;
+	private boolean emitMetadata;
+	private boolean splitByForest;
+	private boolean resumable;
+	private boolean cacheSourceQuery;
+	private volatile CachedQuery serializedQueryCache;
+	private volatile CachedQuery queryDefinitionCache;
+	private String overlapPolicy;
+	private final ThreadLocal<ExportProgress.Batch> currentBatch = new ThreadLocal<>();
+	private final Set<QueryBatcher> activeBatchers = ConcurrentHashMap.newKeySet();
+	private volatile long generation;
+	private volatile long generationCheckedAt;
+	private volatile boolean closing;
+	private final AtomicInteger inFlightBatches = new AtomicInteger();
+	private MetricsReporter metrics;
+	private volatile long lastSuccessfulRun = System.currentTimeMillis();
+
+	static final String CHECKPOINT_STATE_KEY = "marklogic-source-checkpoint";
+	static final String PROGRESS_STATE_KEY = "marklogic-source-progress";
+	static final String GENERATION_STATE_KEY = "marklogic-source-generation";
+	static final String RUNS_STATE_KEY = "marklogic-source-runs";
+	static final String TASK_DONE_STATE_KEY = "marklogic-source-task-done";
+	private static final TypeReference<LinkedHashMap<String, List<String>>> RUNS_TYPE =
+			new TypeReference<LinkedHashMap<String, List<String>>>() {};
+	private static final long PROGRESS_SAVE_INTERVAL_MILLIS = 1000;
+	private static final QName LAST_MODIFIED = new QName("http://marklogic.com/xdmp/property", "last-modified");
+	private static final ObjectMapper MAPPER = new ObjectMapper();
     private ExecutorService executor = Executors.newSingleThreadExecutor();
 
 	@Override
@@ -58,23 +121,273 @@ public class MarkLogicSource extends BatchPushSource<byte[]> implements Runnable
 		dataMovementManager = databaseClient.newDataMovementManager();
 		queryMgr = databaseClient.newQueryManager();
 		this.sourceContext = sourceContext;
+		/*
+		 * Documents count against the budget from the time they are read until Pulsar acks or fails them.
+		 */
+		Integer maxPendingRecords = mlConfig.getMlSourceMaxPendingRecords();
+		Long maxPendingBytes = mlConfig.getMlSourceMaxPendingBytes();
+		exportBudget = new ExportBudget(maxPendingRecords != null ? maxPendingRecords : 1000,
+				maxPendingBytes != null ? maxPendingBytes : 64L * 1024 * 1024);
+		emitMetadata = Boolean.TRUE.equals(mlConfig.getMlSourceEmitMetadata());
+		Long metricsInterval = mlConfig.getMlMetricsIntervalMillis();
+		if (metricsInterval == null || metricsInterval > 0) {
+			metrics = new MetricsReporter(sourceContext::recordMetric)
+					.start(metricsInterval != null ? metricsInterval : 60000L, "marklogic-source-metrics-%d");
+			metrics.withRate("documents_exported");
+			metrics.withRate("bytes_exported");
+			metrics.gauge("pending_records", exportBudget::getRecords);
+			metrics.gauge("pending_bytes", exportBudget::getBytes);
+			metrics.gauge("active_exports", activeBatchers::size);
+			metrics.gauge("seconds_since_last_success", () -> (System.currentTimeMillis() - lastSuccessfulRun) / 1000);
+		}
+		splitByForest = Boolean.TRUE.equals(mlConfig.getMlSourceSplitByForest());
+		resumable = Boolean.TRUE.equals(mlConfig.getMlSourceResumable());
+		cacheSourceQuery = Boolean.TRUE.equals(mlConfig.getMlSourceCacheQuery());
+		String policy = mlConfig.getMlSourceOverlapPolicy();
+		overlapPolicy = (policy == null || policy.trim().length() == 0) ? "QUEUE" : policy.trim().toUpperCase();
+		if (!Arrays.asList("QUEUE", "SKIP", "QUEUE_ONE", "CANCEL_AND_RESTART").contains(overlapPolicy)) {
+			throw new IllegalArgumentException("Unsupported mlSourceOverlapPolicy: " + policy);
+		}
+		String mode = mlConfig.getMlSourceIncrementalMode();
+		if (mode != null && mode.trim().length() > 0 && !"NONE".equalsIgnoreCase(mode.trim())) {
+			incrementalMode = mode.trim().toUpperCase();
+			if (!"TIMESTAMP".equals(incrementalMode) && !"PATH_RANGE".equals(incrementalMode)) {
+				throw new IllegalArgumentException("Unsupported mlSourceIncrementalMode: " + mode);
+			}
+			log.info("Incremental export using {}", incrementalMode);
+		}
 		return;
 	}
 
+	/*
+	 * With mlSourceSplitByForest each forest of the database is its own task, so the tasks of a run are shared
+	 * out across the source instances instead of every instance exporting everything.
+	 */
 	@Override
 	public void discover(Consumer taskEater) throws Exception {
-	    taskEater.accept(String.format("MarkLogic Source Task -%d", System.currentTimeMillis()).getBytes(StandardCharsets.UTF_8));
+		if (closing) {
+			return;
+		}
+		long discoveredAt = System.currentTimeMillis();
+		List<ExportSplit> splits = buildSplits(discoveredAt);
+		synchronized (this) {
+			if (!admitRun(discoveredAt)) {
+				return;
+			}
+			List<String> accepted = new ArrayList<>();
+			try {
+				for (ExportSplit split : splits) {
+					taskEater.accept(split.toBytes());
+					accepted.add(split.getName());
+				}
+			} finally {
+				registerRun(discoveredAt, accepted);
+			}
+		}
+	}
+
+	protected List<ExportSplit> buildSplits(long discoveredAt) {
+		String taskName = String.format("MarkLogic Source Task -%d", discoveredAt);
+		List<ExportSplit> splits = new ArrayList<>();
+		if (!splitByForest) {
+			splits.add(new ExportSplit(taskName, new ArrayList<>(), discoveredAt));
+			return splits;
+		}
+		Forest[] forests = dataMovementManager.readForestConfig().listForests();
+		log.info("Discovered {} forests to export", forests.length);
+		for (Forest forest : forests) {
+			splits.add(new ExportSplit(taskName + "-" + forest.getForestName(),
+					new ArrayList<>(Collections.singletonList(forest.getForestName())), discoveredAt));
+		}
+		return splits;
+	}
+
+	/*
+	 * Applies mlSourceOverlapPolicy when a trigger fires. QUEUE admits every run; SKIP only admits a run when no
+	 * run is outstanding; QUEUE_ONE lets one run wait behind the active one; CANCEL_AND_RESTART admits the run and
+	 * makes it the current generation, which stops the older runs. Synchronized, and held by discover until the
+	 * run is registered, so that triggers firing together on the scheduler threads of this instance cannot both
+	 * pass the check.
+	 */
+	protected synchronized boolean admitRun(long discoveredAt) {
+		if ("QUEUE".equals(overlapPolicy)) {
+			return true;
+		}
+		Map<String, List<String>> outstanding = loadOutstandingRuns();
+		boolean admit;
+		switch (overlapPolicy) {
+			case "SKIP":
+				admit = outstanding.isEmpty();
+				break;
+			case "QUEUE_ONE":
+				admit = outstanding.size() <= 1;
+				break;
+			default:
+				admit = true;
+				sourceContext.putState(GENERATION_STATE_KEY, ByteBuffer.wrap(Long.toString(discoveredAt).getBytes(StandardCharsets.UTF_8)));
+				generation = discoveredAt;
+				for (QueryBatcher batcher : activeBatchers) {
+					dataMovementManager.stopJob(batcher);
+				}
+		}
+		if (!admit) {
+			log.info("Skipping this trigger because the runs {} are still outstanding", outstanding.keySet());
+			recordMetric("export_runs_skipped", 1);
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * The runs that were admitted, each with the names of the tasks that were handed out for it, are kept in the
+	 * state store as the tasks may run on any instance. Each task records its own completion under its name, so a
+	 * task that is delivered twice is only counted once. Only discover, which runs on one instance, writes the
+	 * list of runs.
+	 */
+	protected synchronized void registerRun(long discoveredAt, List<String> taskNames) throws IOException {
+		if ("QUEUE".equals(overlapPolicy) || taskNames.isEmpty()) {
+			return;
+		}
+		Map<String, List<String>> runs = loadOutstandingRuns();
+		runs.put(Long.toString(discoveredAt), taskNames);
+		sourceContext.putState(RUNS_STATE_KEY, ByteBuffer.wrap(MAPPER.writeValueAsBytes(runs)));
+	}
+
+	/*
+	 * Runs whose tasks have all completed are dropped from the state store, along with their completion markers.
+	 */
+	protected Map<String, List<String>> loadOutstandingRuns() {
+		ByteBuffer state = sourceContext.getState(RUNS_STATE_KEY);
+		if (state == null || !state.hasRemaining()) {
+			return new LinkedHashMap<>();
+		}
+		Map<String, List<String>> runs;
+		try {
+			byte[] bytes = new byte[state.remaining()];
+			state.duplicate().get(bytes);
+			runs = MAPPER.readValue(bytes, RUNS_TYPE);
+		} catch (IOException e) {
+			log.warn("Ignoring the unreadable list of outstanding runs: {}", e.getMessage());
+			return new LinkedHashMap<>();
+		}
+		Map<String, List<String>> outstanding = new LinkedHashMap<>();
+		for (Map.Entry<String, List<String>> run : runs.entrySet()) {
+			if (run.getValue().stream().anyMatch(taskName -> !isTaskDone(taskName))) {
+				outstanding.put(run.getKey(), run.getValue());
+			}
+		}
+		if (outstanding.size() < runs.size()) {
+			try {
+				sourceContext.putState(RUNS_STATE_KEY, ByteBuffer.wrap(MAPPER.writeValueAsBytes(outstanding)));
+			} catch (IOException e) {
+				log.warn("Unable to save the list of outstanding runs: {}", e.getMessage());
+				return outstanding;
+			}
+			runs.keySet().removeAll(outstanding.keySet());
+			for (List<String> finished : runs.values()) {
+				finished.forEach(taskName -> sourceContext.putState(taskDoneKey(taskName), ByteBuffer.allocate(0)));
+			}
+		}
+		return outstanding;
+	}
+
+	protected void completeTask(ExportSplit split) {
+		if (!"QUEUE".equals(overlapPolicy)) {
+			sourceContext.putState(taskDoneKey(split.getName()), ByteBuffer.wrap(new byte[] {1}));
+		}
+	}
+
+	private boolean isTaskDone(String taskName) {
+		ByteBuffer state = sourceContext.getState(taskDoneKey(taskName));
+		return state != null && state.hasRemaining();
+	}
+
+	private String taskDoneKey(String taskName) {
+		return TASK_DONE_STATE_KEY + "-" + taskName;
 	}
 
 	@Override
 	public void prepare(byte[] instanceSplit) throws Exception {
 		 log.info("Instance " + sourceContext.getInstanceId() + " got a new discovered source task {}",
 		            new String(instanceSplit, StandardCharsets.UTF_8));
-		    executor.submit(this);
+		 final ExportSplit split = parseSplit(instanceSplit);
+		 if (closing) {
+			 log.info("Not starting the task {} as the source is closing", split.getName());
+			 return;
+		 }
+		    executor.submit(() -> run(split));
+	}
+
+	protected void recordMetric(String name, double value) {
+		if (metrics != null) {
+			metrics.record(name, value);
+		}
+	}
+
+	/*
+	 * Under CANCEL_AND_RESTART, whether a newer run has been discovered since this split. The generation is read
+	 * from the state store at most once a second.
+	 */
+	protected boolean isSuperseded(ExportSplit split) {
+		if (!"CANCEL_AND_RESTART".equals(overlapPolicy)) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		if (now - generationCheckedAt >= PROGRESS_SAVE_INTERVAL_MILLIS) {
+			generationCheckedAt = now;
+			ByteBuffer state = sourceContext.getState(GENERATION_STATE_KEY);
+			if (state != null && state.hasRemaining()) {
+				generation = Long.parseLong(StandardCharsets.UTF_8.decode(state.duplicate()).toString());
+			}
+		}
+		return split.getDiscoveredAt() < generation;
+	}
+
+	/*
+	 * Tasks discovered before splits were introduced are plain names; they cover the whole database.
+	 */
+	protected ExportSplit parseSplit(byte[] instanceSplit) {
+		try {
+			return ExportSplit.fromBytes(instanceSplit);
+		} catch (IOException e) {
+			return new ExportSplit(new String(instanceSplit, StandardCharsets.UTF_8), new ArrayList<>(), 0);
+		}
 	}
 	
+	/*
+	 * Batches that are already being exported are given until mlSourceShutdownTimeoutMillis to hand their
+	 * documents to Pulsar; batches retrieved after close has started are not exported. The QueryBatchers are then
+	 * stopped and the connections to MarkLogic released. An interrupted run neither saves its incremental
+	 * checkpoint nor clears its resumable progress, so the next run covers what this one missed.
+	 */
 	@Override
 	public void close() throws Exception {
+		closing = true;
+		executor.shutdown();
+		Long timeout = mlConfig != null ? mlConfig.getMlSourceShutdownTimeoutMillis() : null;
+		long deadline = System.currentTimeMillis() + (timeout != null ? timeout : 30000L);
+		while (inFlightBatches.get() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		if (inFlightBatches.get() > 0) {
+			log.warn("Timed out waiting for {} export batches to finish", inFlightBatches.get());
+		}
+		for (QueryBatcher batcher : activeBatchers) {
+			dataMovementManager.stopJob(batcher);
+		}
+		if (!executor.awaitTermination(Math.max(deadline - System.currentTimeMillis(), 1000), TimeUnit.MILLISECONDS)) {
+			log.warn("Interrupting export tasks that did not stop in time");
+			executor.shutdownNow();
+		}
+		if (metrics != null) {
+			metrics.stop();
+		}
+		if (dataMovementManager != null) {
+			dataMovementManager.release();
+		}
+		if (databaseClient != null) {
+			databaseClient.release();
+		}
 	}
 	
 	protected ServerTransform buildServerTransform(final MarkLogicAbstractConfig mlConfig) {
@@ -107,62 +420,626 @@ public class MarkLogicSource extends BatchPushSource<byte[]> implements Runnable
 		return null;
 	}
 	
-	private QueryBatcher getQueryBatcher(MarkLogicSourceConfig mlConfig) {
-		
-		String serializedQuery = "";
-		QueryBatcher queryBatcher;
-		if ("FALSE".equalsIgnoreCase(mlConfig.getDmsdkIsSourceQuerySerialized())) {
-			serializedQuery = databaseClient.newServerEval().javascript(mlConfig.getDmsdkSourceQuery()+ ".toObject()")
-					.evalAs(String.class);
+	/*
+	 * With mlSourceCacheQuery the query is only evaluated on the first run, and again if dmsdkSourceQuery changes.
+	 * Queries that depend on when they are evaluated, such as fn.currentDateTime() bounds, must not be cached.
+	 */
+	protected String buildSerializedQuery(MarkLogicSourceConfig mlConfig) {
+		String source = mlConfig.getDmsdkSourceQuery();
+		if (!"FALSE".equalsIgnoreCase(mlConfig.getDmsdkIsSourceQuerySerialized())) {
+			return source;
+		}
+		CachedQuery cached = serializedQueryCache;
+		if (cacheSourceQuery && cached != null && cached.getSource().equals(source)) {
+			return (String) cached.getQuery();
+		}
+		String serialized = databaseClient.newServerEval().javascript(source + ".toObject()")
+				.evalAs(String.class);
+		if (cacheSourceQuery) {
+			serializedQueryCache = new CachedQuery(source, serialized);
+		}
+		return serialized;
+	}
+
+	/*
+	 * With mlSourceCacheQuery, successive runs of the same serialized query also reuse its definition while the
+	 * text is unchanged.
+	 */
+	protected RawCtsQueryDefinition buildQueryDefinition(String serializedQuery) {
+		CachedQuery cached = queryDefinitionCache;
+		if (cacheSourceQuery && cached != null && cached.getSource().equals(serializedQuery)) {
+			return (RawCtsQueryDefinition) cached.getQuery();
+		}
+		StringHandle handle = new StringHandle("{'ctsquery':" + serializedQuery + "}").withFormat(Format.JSON);
+		RawCtsQueryDefinition query = queryMgr.newRawCtsQueryDefinition(handle);
+		if (cacheSourceQuery) {
+			queryDefinitionCache = new CachedQuery(serializedQuery, query);
+		}
+		return query;
+	}
+
+	public void invalidateQueryCache() {
+		serializedQueryCache = null;
+		queryDefinitionCache = null;
+	}
+
+	/**
+	 * Builds the server-side script for an incremental run. The script ANDs the user's query with a lower bound
+	 * at the last checkpoint, when there is one, and returns the combined serialized query together with the
+	 * checkpoint for this run: the request timestamp for TIMESTAMP, or for PATH_RANGE the current dateTime less
+	 * mlSourceIncrementalSafetyLagMillis. That is also the upper bound, so documents stamped after it are left for
+	 * the next run; the lag covers documents that are stamped before their transaction commits.
+	 */
+	protected String buildIncrementalQueryScript(MarkLogicSourceConfig mlConfig) {
+		String userQuery = "FALSE".equalsIgnoreCase(mlConfig.getDmsdkIsSourceQuerySerialized())
+				? mlConfig.getDmsdkSourceQuery()
+				: "cts.query(xdmp.toJSON(" + mlConfig.getDmsdkSourceQuery() + ").root)";
+		StringBuilder script = new StringBuilder();
+		if ("TIMESTAMP".equals(incrementalMode)) {
+			script.append("const upper = xdmp.requestTimestamp();\n")
+					.append("const queries = [").append(userQuery).append("];\n")
+					.append("if (checkpoint) { queries.push(cts.afterQuery(xs.unsignedLong(checkpoint))); }\n");
 		} else {
-			serializedQuery = "{'ctsquery':" + mlConfig.getDmsdkSourceQuery()+ "}";
+			Long lag = mlConfig.getMlSourceIncrementalSafetyLagMillis();
+			long lagMillis = lag != null ? lag : 60000L;
+			if (lagMillis < 0) {
+				throw new IllegalArgumentException("mlSourceIncrementalSafetyLagMillis must not be negative: " + lagMillis);
+			}
+			script.append("const upper = fn.currentDateTime().subtract(xs.dayTimeDuration('")
+					.append(String.format(Locale.ROOT, "PT%d.%03dS", lagMillis / 1000, lagMillis % 1000)).append("'));\n")
+					.append("const queries = [").append(userQuery).append(", cts.pathRangeQuery(path, '<=', upper)];\n")
+					.append("if (checkpoint) { queries.push(cts.pathRangeQuery(path, '>', xs.dateTime(checkpoint))); }\n");
+		}
+		return script.append("xdmp.toJsonString({query: cts.andQuery(queries).toObject(), checkpoint: String(upper)})")
+				.toString();
+	}
+
+	protected IncrementalQuery buildIncrementalQuery(MarkLogicSourceConfig mlConfig, String checkpoint) throws IOException {
+		ServerEvaluationCall call = databaseClient.newServerEval().javascript(buildIncrementalQueryScript(mlConfig))
+				.addVariable("checkpoint", checkpoint != null ? checkpoint : "");
+		if ("PATH_RANGE".equals(incrementalMode)) {
+			call.addVariable("path", mlConfig.getMlSourceIncrementalPath());
 		}
+		JsonNode result = MAPPER.readTree(call.evalAs(String.class));
+		return new IncrementalQuery(result.get("query").toString(), result.get("checkpoint").asText());
+	}
+
+	/*
+	 * Each forest split keeps its own checkpoint, as the splits of a run can finish at different times.
+	 */
+	protected String checkpointKey(ExportSplit split) {
+		return stateKey(CHECKPOINT_STATE_KEY, split);
+	}
+
+	protected String stateKey(String prefix, ExportSplit split) {
+		return split.isWholeDatabase() ? prefix : prefix + "-" + String.join(",", split.getForests());
+	}
+
+	/*
+	 * The progress of an export that did not finish, or null when the last export of the split completed.
+	 */
+	protected ExportProgress.State loadProgress(ExportSplit split) throws IOException {
+		ByteBuffer state = sourceContext.getState(stateKey(PROGRESS_STATE_KEY, split));
+		if (state == null || !state.hasRemaining()) {
+			return null;
+		}
+		byte[] bytes = new byte[state.remaining()];
+		state.duplicate().get(bytes);
+		return ExportProgress.readState(bytes);
+	}
+
+	protected void saveProgress(ExportSplit split, byte[] state) {
+		sourceContext.putState(stateKey(PROGRESS_STATE_KEY, split), ByteBuffer.wrap(state));
+	}
+
+	protected void clearProgress(ExportSplit split) {
+		sourceContext.putState(stateKey(PROGRESS_STATE_KEY, split), ByteBuffer.allocate(0));
+	}
+
+	/**
+	 * Restricts the query of an interrupted export to the URIs after its watermark. Needs the URI lexicon, which
+	 * the QueryBatcher already relies on.
+	 */
+	protected String buildResumeQuery(String serializedQuery, String resumeAfter) {
+		return databaseClient.newServerEval()
+				.javascript("xdmp.toJsonString(cts.andQuery([cts.query(xdmp.toJSON(" + serializedQuery + ").root), "
+						+ "cts.rangeQuery(cts.uriReference(), '>', after)]).toObject())")
+				.addVariable("after", resumeAfter)
+				.evalAs(String.class);
+	}
+
+	protected List<String> listForestNames(ExportSplit split) {
+		if (!split.isWholeDatabase()) {
+			return new ArrayList<>(split.getForests());
+		}
+		List<String> names = new ArrayList<>();
+		for (Forest forest : dataMovementManager.readForestConfig().listForests()) {
+			names.add(forest.getForestName());
+		}
+		return names;
+	}
+
+	protected String loadCheckpoint(ExportSplit split) {
+		ByteBuffer state = sourceContext.getState(checkpointKey(split));
+		if (state == null || !state.hasRemaining()) {
+			return null;
+		}
+		return StandardCharsets.UTF_8.decode(state.duplicate()).toString();
+	}
+
+	protected void saveCheckpoint(ExportSplit split, String checkpoint) {
+		sourceContext.putState(checkpointKey(split), ByteBuffer.wrap(checkpoint.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/*
+	 * Documents that could not be read or handed to Pulsar, and records that Pulsar failed, are counted in
+	 * failures, so the run knows whether it exported everything.
+	 */
+	private QueryBatcher getQueryBatcher(MarkLogicSourceConfig mlConfig, String serializedQuery, ExportSplit split,
+			List<String> forests, ExportProgress progress, AtomicBoolean cancelled, AtomicLong failures) {
+		
+		QueryBatcher queryBatcher;
 		ServerTransform transform = buildServerTransform(mlConfig.getMarkLogicAbstractConfig());
 	
-		StringHandle handle = new StringHandle("{'ctsquery':" + serializedQuery + "}").withFormat(Format.JSON);
-		RawCtsQueryDefinition query = queryMgr.newRawCtsQueryDefinition(handle);
+		RawCtsQueryDefinition query = buildQueryDefinition(serializedQuery);
 		ExportListener exportListener = new ExportListener().withConsistentSnapshot();
 		if (transform != null) {
 			exportListener.withTransform(transform);
 		}
+		if (emitMetadata) {
+			exportListener.withMetadataCategory(DocumentManager.Metadata.COLLECTIONS)
+					.withMetadataCategory(DocumentManager.Metadata.PROPERTIES);
+		}
+		exportListener.onDocumentReady(doc -> {
+			ExportProgress.Batch batch = currentBatch.get();
+			byte[] value = null;
+			MarkLogicRecord record = null;
+			boolean acquired = false;
+			boolean consumed = false;
+			try {
+				// The bytes are passed on as served, so XML and binary documents are not decoded.
+				value = doc.getContent(new BytesHandle()).get();
+				exportBudget.acquire(value.length);
+				acquired = true;
+				record = toRecord(doc, value);
+				record.setFailures(failures);
+				if (batch != null) {
+					batch.recordStarted();
+					record.setBatch(batch);
+				}
+				consume(record);
+				consumed = true;
+				if (metrics != null) {
+					metrics.increment("documents_exported");
+					metrics.increment("bytes_exported", value.length);
+				}
+			} catch (final Exception e) {
+				failures.incrementAndGet();
+				/*
+				 * A record that never reached Pulsar will not be acked or failed, so its budget is given back here.
+				 */
+				if (acquired && !consumed) {
+					if (record != null) {
+						record.fail();
+					} else {
+						exportBudget.release(value.length);
+					}
+				}
+				if (batch != null) {
+					batch.fail();
+				}
+				if (metrics != null) {
+					metrics.increment("documents_failed");
+				}
+				throw new RuntimeException(e);
+			}
+		});
+		exportListener.onFailure((batch, throwable) -> {
+			log.warn("Unable to read a batch of {} documents: {}", batch.getItems().length, throwable.getMessage());
+			failures.incrementAndGet();
+			ExportProgress.Batch tracked = currentBatch.get();
+			if (tracked != null) {
+				tracked.fail();
+			}
+			if (metrics != null) {
+				metrics.increment("documents_failed", batch.getItems().length);
+			}
+		});
 		queryBatcher = dataMovementManager.newQueryBatcher(query)
 										.withJobName("Query Batcher Job")
 										.withBatchSize(mlConfig.getDmsdkBatchSize())
-										.withThreadCount(mlConfig.getDmsdkThreadCount())
-										.onUrisReady(exportListener.onDocumentReady(doc -> {
-																		try {
-																				String jsonDoc = doc.getContentAs(String.class);
-																				consume(new MarkLogicRecord(jsonDoc.getBytes()));
-																			} catch (final Exception e) {
-																		throw new RuntimeException(e);
-																		}
-																		}))
+										.withThreadCount(mlConfig.getDmsdkThreadCount());
+		final long[] lastSave = {System.currentTimeMillis()};
+		queryBatcher.onUrisReady(batch -> {
+			inFlightBatches.incrementAndGet();
+			try {
+				if (metrics != null) {
+					metrics.increment("uris_ready", batch.getItems().length);
+					metrics.increment("uris_ready_" + batch.getForest().getForestName(), batch.getItems().length);
+				}
+				if (closing) {
+					return;
+				}
+				if (progress == null) {
+					exportListener.processEvent(batch);
+					return;
+				}
+				ExportProgress.Batch tracked = progress.startBatch(batch.getForest().getForestName(),
+						batch.getForestBatchNumber(), batch.getItems(), batch.getServerTimestamp());
+				currentBatch.set(tracked);
+				try {
+					exportListener.processEvent(batch);
+				} finally {
+					currentBatch.remove();
+					tracked.seal();
+				}
+				synchronized (lastSave) {
+					long now = System.currentTimeMillis();
+					if (now - lastSave[0] >= PROGRESS_SAVE_INTERVAL_MILLIS) {
+						lastSave[0] = now;
+						saveChangedProgress(split, progress);
+					}
+				}
+			} finally {
+				inFlightBatches.decrementAndGet();
+			}
+		});
+		if ("CANCEL_AND_RESTART".equals(overlapPolicy)) {
+			queryBatcher.onUrisReady(batch -> {
+				if (isSuperseded(split) && cancelled.compareAndSet(false, true)) {
+					log.info("Stopping the export of {} as a newer run has started", split.getName());
+					dataMovementManager.stopJob(batch.getBatcher());
+				}
+			});
+		}
+		queryBatcher.onQueryFailure(failure -> {
+			log.warn("Query failure in forest {}: {}", failure.getForest().getForestName(), failure.getMessage());
+			if (metrics != null) {
+				metrics.increment("query_failures");
+			}
+		});
+		queryBatcher
 										.onUrisReady(new ProgressListener().onProgressUpdate(progressUpdate -> {
 															log.info(progressUpdate.getProgressAsString());
 													}))
 										.withConsistentSnapshot();
+		if (forests != null) {
+			queryBatcher.withForestConfig(buildForestConfig(forests));
+		}
 
 		return  queryBatcher;
 	}
 	
+	/*
+	 * With mlSourceEmitMetadata the record is keyed by URI, carries the document's format, collections and
+	 * last-modified time as properties, and uses last-modified as its event time. Otherwise it only has a value.
+	 */
+	protected MarkLogicRecord toRecord(DocumentRecord doc, byte[] value) {
+		if (!emitMetadata) {
+			return new MarkLogicRecord(value, exportBudget, null, null, Collections.emptyMap());
+		}
+		Map<String, String> properties = new HashMap<>();
+		properties.put("uri", doc.getUri());
+		if (doc.getFormat() != null) {
+			properties.put("format", doc.getFormat().name());
+		}
+		Long eventTime = null;
+		DocumentMetadataHandle metadata = doc.getMetadata(new DocumentMetadataHandle());
+		if (!metadata.getCollections().isEmpty()) {
+			properties.put("collections", String.join(",", metadata.getCollections()));
+		}
+		Object lastModified = metadata.getProperties().get(LAST_MODIFIED);
+		if (lastModified != null) {
+			properties.put("lastModified", lastModified.toString());
+			try {
+				eventTime = OffsetDateTime.parse(lastModified.toString()).toInstant().toEpochMilli();
+			} catch (DateTimeParseException e) {
+				log.debug("Unable to parse last-modified {} of {}", lastModified, doc.getUri());
+			}
+		}
+		return new MarkLogicRecord(value, exportBudget, doc.getUri(), eventTime, properties);
+	}
+
+	/*
+	 * A forest configuration limited to the given forests, of a split or of a resumed forest, so the QueryBatcher
+	 * only asks those forests for URIs.
+	 */
+	protected ForestConfiguration buildForestConfig(List<String> forestNames) {
+		final Forest[] forests = Arrays.stream(dataMovementManager.readForestConfig().listForests())
+				.filter(forest -> forestNames.contains(forest.getForestName()))
+				.toArray(Forest[]::new);
+		if (forests.length == 0) {
+			throw new IllegalStateException("None of the forests " + forestNames + " belong to the database");
+		}
+		return () -> forests;
+	}
+
+	private void saveChangedProgress(ExportSplit split, ExportProgress progress) {
+		try {
+			byte[] state = progress.takeChangedState();
+			if (state != null) {
+				saveProgress(split, state);
+			}
+		} catch (IOException e) {
+			log.warn("Unable to save the export progress of {}: {}", split.getName(), e.getMessage());
+		}
+	}
+
 	@Override
 	  public void run() {
-		QueryBatcher queryBatcher = getQueryBatcher(mlConfig);
-		JobTicket ticket = dataMovementManager.startJob(queryBatcher);
-		queryBatcher.awaitCompletion();
-		dataMovementManager.stopJob(queryBatcher);
-		JobReport report = dataMovementManager.getJobReport(ticket);
-		log.info("The task {}  finished in {} seconds with {} successful events and {} failed events.",
-				ticket.getJobId(),
-				(report.getJobEndTime().getTimeInMillis() - report.getJobStartTime().getTimeInMillis())/1000, 
-				report.getSuccessEventsCount(),
-				report.getFailureEventsCount()
+		long now = System.currentTimeMillis();
+		run(new ExportSplit(String.format("MarkLogic Source Task -%d", now), new ArrayList<>(), now));
+	  }
+
+	/*
+	 * Every task ends with consume(null), even one that fails, as BatchSourceExecutor waits for it before the next
+	 * task is started. A task stopped by close is not recorded as complete, as it is delivered again.
+	 */
+	public void run(ExportSplit split) {
+		boolean interrupted = false;
+		try {
+			interrupted = !export(split);
+		} catch (Exception e) {
+			log.error("The task {} failed: {}", split.getName(), e.getMessage(), e);
+			if (metrics != null) {
+				metrics.increment("export_runs_failed");
+			}
+		} finally {
+			if (!interrupted) {
+				completeTask(split);
+			}
+			consume(null);
+		}
+	}
+
+	/*
+	 * With mlSourceResumable, an export that did not finish is picked up again with the same query, starting after
+	 * the URI watermark it had reached, rather than from the beginning. Returns false if the source was closed
+	 * before the export finished.
+	 */
+	protected boolean export(ExportSplit split) {
+		long startedAt = System.currentTimeMillis();
+		if (split.getDiscoveredAt() > 0) {
+			recordMetric("export_run_lag_ms", startedAt - split.getDiscoveredAt());
+		}
+		if (isSuperseded(split)) {
+			log.info("Skipping the task {} as a newer run has started", split.getName());
+			return true;
+		}
+		String serializedQuery;
+		String nextCheckpoint = null;
+		ExportProgress.State resumed = null;
+		if (resumable) {
+			try {
+				resumed = loadProgress(split);
+			} catch (IOException e) {
+				log.warn("Ignoring unreadable export progress of {}: {}", split.getName(), e.getMessage());
+			}
+		}
+		if (resumed != null) {
+			serializedQuery = resumed.getQuery();
+			nextCheckpoint = resumed.getCheckpoint();
+		} else if (incrementalMode != null) {
+			try {
+				IncrementalQuery incrementalQuery = buildIncrementalQuery(mlConfig, loadCheckpoint(split));
+				serializedQuery = incrementalQuery.getQuery();
+				nextCheckpoint = incrementalQuery.getCheckpoint();
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to build the incremental source query: " + e.getMessage(), e);
+			}
+		} else {
+			serializedQuery = buildSerializedQuery(mlConfig);
+		}
+		ExportProgress progress = null;
+		/*
+		 * The query of each QueryBatcher of the run, by the forests it covers; null covers the forests of the split.
+		 */
+		Map<List<String>, String> batcherQueries = new LinkedHashMap<>();
+		if (resumed != null && !resumed.getForests().isEmpty()) {
+			progress = new ExportProgress(resumed);
+			log.info("Resuming the export of {} started at timestamp {}", split.getName(), resumed.getServerTimestamp());
+			for (Map.Entry<String, String> resumePoint : ExportProgress.getResumePoints(resumed).entrySet()) {
+				String resumeAfter = resumePoint.getValue();
+				log.info("Resuming forest {} {}", resumePoint.getKey(),
+						resumeAfter != null ? "after URI " + resumeAfter : "from the beginning");
+				batcherQueries.put(Collections.singletonList(resumePoint.getKey()),
+						resumeAfter != null ? buildResumeQuery(serializedQuery, resumeAfter) : serializedQuery);
+			}
+		} else {
+			if (resumed != null) {
+				progress = new ExportProgress(resumed);
+			} else if (resumable) {
+				ExportProgress.State state = new ExportProgress.State();
+				state.setQuery(serializedQuery);
+				state.setCheckpoint(nextCheckpoint);
+				state.setForests(listForestNames(split));
+				progress = new ExportProgress(state);
+			}
+			batcherQueries.put(split.isWholeDatabase() ? null : split.getForests(), serializedQuery);
+		}
+		AtomicBoolean cancelled = new AtomicBoolean();
+		AtomicLong failures = new AtomicLong();
+		List<QueryBatcher> queryBatchers = new ArrayList<>();
+		for (Map.Entry<List<String>, String> batcherQuery : batcherQueries.entrySet()) {
+			queryBatchers.add(getQueryBatcher(mlConfig, batcherQuery.getValue(), split, batcherQuery.getKey(), progress,
+					cancelled, failures));
+		}
+		activeBatchers.addAll(queryBatchers);
+		List<JobTicket> tickets = new ArrayList<>();
+		long successEvents = 0;
+		long failureEvents = 0;
+		boolean finished = false;
+		try {
+			for (QueryBatcher queryBatcher : queryBatchers) {
+				tickets.add(dataMovementManager.startJob(queryBatcher));
+			}
+			for (QueryBatcher queryBatcher : queryBatchers) {
+				queryBatcher.awaitCompletion();
+				if (cancelled.get() || closing) {
+					// A cancelled run stops the batchers of its other forests too.
+					queryBatchers.forEach(dataMovementManager::stopJob);
+				}
+			}
+			for (int i = 0; i < queryBatchers.size(); i++) {
+				dataMovementManager.stopJob(queryBatchers.get(i));
+				JobReport report = dataMovementManager.getJobReport(tickets.get(i));
+				successEvents += report.getSuccessEventsCount();
+				failureEvents += report.getFailureEventsCount();
+			}
+			finished = true;
+		} finally {
+			activeBatchers.removeAll(queryBatchers);
+			if (!finished) {
+				queryBatchers.forEach(dataMovementManager::stopJob);
+			}
+		}
+		recordMetric("export_run_duration_ms", System.currentTimeMillis() - startedAt);
+		if (closing || cancelled.get() || isSuperseded(split)) {
+			log.info("The task {} was stopped before it finished", split.getName());
+			if (progress != null) {
+				saveChangedProgress(split, progress);
+			}
+			return !closing;
+		}
+		// Only a run that commits a checkpoint or clears its progress needs to know that Pulsar has every record.
+		boolean acked = nextCheckpoint == null && progress == null || awaitAcks(split);
+		log.info("The task {} for {} finished in {} seconds with {} successful events and {} failed events; {} documents failed.",
+				tickets.stream().map(JobTicket::getJobId).collect(Collectors.joining(",")),
+				split.getName(),
+				(System.currentTimeMillis() - startedAt)/1000,
+				successEvents,
+				failureEvents,
+				failures.get()
 				);
-		consume(null);
+		/*
+		 * The checkpoint only moves forward once Pulsar has acked every record of the run and nothing failed, so
+		 * whatever this run did not deliver is exported again next time.
+		 */
+		boolean clean = acked && failures.get() == 0 && failureEvents == 0;
+		if (progress != null) {
+			if (clean) {
+				clearProgress(split);
+			} else {
+				saveChangedProgress(split, progress);
+			}
+		}
+		if (clean) {
+			lastSuccessfulRun = System.currentTimeMillis();
+			if (metrics != null) {
+				metrics.increment("export_runs_succeeded");
+			}
+		} else if (metrics != null) {
+			metrics.increment("export_runs_failed");
+		}
+		if (nextCheckpoint != null) {
+			if (clean) {
+				saveCheckpoint(split, nextCheckpoint);
+				log.info("Saved incremental checkpoint {}", nextCheckpoint);
+			} else {
+				log.warn("Not advancing the incremental checkpoint of {}: {} documents failed, {} batches failed{}", split.getName(),
+						failures.get(), failureEvents, acked ? "" : ", and not every record was acked");
+			}
+		}
+		return true;
 	  }
 
+	/*
+	 * Runs of an instance follow one another, so once the budget is empty every record of this run has been acked
+	 * or failed.
+	 */
+	protected boolean awaitAcks(ExportSplit split) {
+		Long timeout = mlConfig.getMlSourceAckTimeoutMillis();
+		try {
+			if (exportBudget.awaitDrained(timeout != null ? timeout : 60000L, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+			log.warn("Timed out waiting for Pulsar to ack the {} records of {} still in flight", exportBudget.getRecords(),
+					split.getName());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
 	@Data
-	static private class MarkLogicRecord implements Record<byte[]> {
+	static class CachedQuery {
+		private final String source;
+		private final Object query;
+	}
+
+	@Data
+	static class IncrementalQuery {
+		private final String query;
+		private final String checkpoint;
+	}
+
+	@Data
+	static class MarkLogicRecord implements Record<byte[]> {
 		private final byte[] value;
+
+		@Getter(AccessLevel.NONE)
+		@ToString.Exclude
+		@EqualsAndHashCode.Exclude
+		private final ExportBudget budget;
+
+		@Getter(AccessLevel.NONE)
+		private final String key;
+
+		@Getter(AccessLevel.NONE)
+		private final Long eventTime;
+
+		private final Map<String, String> properties;
+
+		@Getter(AccessLevel.NONE)
+		@ToString.Exclude
+		@EqualsAndHashCode.Exclude
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		@Getter(AccessLevel.NONE)
+		@ToString.Exclude
+		@EqualsAndHashCode.Exclude
+		private ExportProgress.Batch batch;
+
+		@Getter(AccessLevel.NONE)
+		@ToString.Exclude
+		@EqualsAndHashCode.Exclude
+		private AtomicLong failures;
+
+		@Override
+		public Optional<String> getKey() {
+			return Optional.ofNullable(key);
+		}
+
+		@Override
+		public Optional<Long> getEventTime() {
+			return Optional.ofNullable(eventTime);
+		}
+
+		@Override
+		public void ack() {
+			if (release() && batch != null) {
+				batch.recordDone();
+			}
+		}
+
+		@Override
+		public void fail() {
+			if (release() && failures != null) {
+				failures.incrementAndGet();
+			}
+		}
+
+		/*
+		 * A failed record never completes its batch, so the export watermark stays before it.
+		 */
+		private boolean release() {
+			if (!released.compareAndSet(false, true)) {
+				return false;
+			}
+			if (budget != null) {
+				budget.release(value.length);
+			}
+			return true;
+		}
 	}
 }
\ No newline at end of file
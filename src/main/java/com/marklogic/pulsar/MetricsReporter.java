@@ -0,0 +1,106 @@
+package com.marklogic.pulsar;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Collects connector metrics and passes them to a recorder, normally the recordMetric method of the Pulsar
+ * connector context. Recording a Pulsar metric updates a summary, which is too costly to do for every record, so
+ * hot-path counts are added up locally and reported once per interval as the amount counted in that interval.
+ * Gauges are sampled at each report, and values such as latencies can be recorded directly.
+ */
+@Slf4j
+public class MetricsReporter {
+
+	private final BiConsumer<String, Double> recorder;
+	private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private final Set<String> rates = ConcurrentHashMap.newKeySet();
+	private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+	private ScheduledExecutorService scheduler;
+	private long lastReport = System.nanoTime();
+
+	public MetricsReporter(BiConsumer<String, Double> recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Reports every intervalMillis on a daemon thread; an interval of 0 or less leaves reporting to the caller.
+	 */
+	public MetricsReporter start(long intervalMillis, String threadName) {
+		if (intervalMillis > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactoryBuilder().setNameFormat(threadName).setDaemon(true).build());
+			scheduler.scheduleAtFixedRate(this::report, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+		return this;
+	}
+
+	public void increment(String name) {
+		increment(name, 1);
+	}
+
+	public void increment(String name, long amount) {
+		LongAdder counter = counters.get(name);
+		if (counter == null) {
+			counter = counters.computeIfAbsent(name, key -> new LongAdder());
+		}
+		counter.add(amount);
+	}
+
+	/**
+	 * Also reports the counter as name_per_second, averaged over the interval.
+	 */
+	public void withRate(String name) {
+		rates.add(name);
+		counters.computeIfAbsent(name, key -> new LongAdder());
+	}
+
+	public void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	public void record(String name, double value) {
+		recorder.accept(name, value);
+	}
+
+	public synchronized void report() {
+		long now = System.nanoTime();
+		double seconds = Math.max(now - lastReport, 1) / 1_000_000_000.0;
+		lastReport = now;
+		try {
+			for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+				long value = counter.getValue().sumThenReset();
+				recorder.accept(counter.getKey(), (double) value);
+				if (rates.contains(counter.getKey())) {
+					recorder.accept(counter.getKey() + "_per_second", value / seconds);
+				}
+			}
+			for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+				recorder.accept(gauge.getKey(), (double) gauge.getValue().getAsLong());
+			}
+		} catch (Exception e) {
+			log.warn("Unable to report metrics: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Stops the reporting thread and reports what was counted since the last report.
+	 */
+	public void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		report();
+	}
+}
@@ -0,0 +1,96 @@
+package com.marklogic.pulsar;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.pulsar.functions.api.Record;
+
+import com.marklogic.client.datamovement.WriteBatch;
+import com.marklogic.client.datamovement.WriteEvent;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps the Pulsar records that have been handed to the WriteBatcher but not yet written to MarkLogic.
+ * Records are keyed by the target URI of their write operation and are acked or failed from the
+ * WriteBatcher success and failure listeners, so a record is only acked once MarkLogic has committed its batch.
+ */
+@Slf4j
+public class PendingRecordTracker {
+
+	/*
+	 * A queue per URI so that two records that resolve to the same URI (possible with the JSONPATH or HASH
+	 * strategies) are both tracked. They are released in the order in which they were added.
+	 */
+	private final ConcurrentMap<String, Queue<Record<?>>> pending = new ConcurrentHashMap<>();
+
+	public void track(String uri, Record<?> record) {
+		pending.compute(uri, (key, records) -> {
+			Queue<Record<?>> queue = records != null ? records : new ConcurrentLinkedQueue<>();
+			queue.add(record);
+			return queue;
+		});
+	}
+
+	/**
+	 * Removes a record without acking or failing it. Used when the record never made it into the WriteBatcher.
+	 */
+	public void untrack(String uri, Record<?> record) {
+		pending.computeIfPresent(uri, (key, records) -> {
+			records.remove(record);
+			return records.isEmpty() ? null : records;
+		});
+	}
+
+	public void ack(WriteBatch batch) {
+		for (WriteEvent event : WriteBatchDocuments.of(batch)) {
+			Record<?> record = release(event.getTargetUri());
+			if (record != null) {
+				record.ack();
+			}
+		}
+	}
+
+	public void fail(WriteBatch batch) {
+		for (WriteEvent event : WriteBatchDocuments.of(batch)) {
+			Record<?> record = release(event.getTargetUri());
+			if (record != null) {
+				record.fail();
+			}
+		}
+	}
+
+	/**
+	 * Fails every record still pending. Called on close so Pulsar can redeliver anything that was never committed.
+	 */
+	public void failAll() {
+		for (String uri : pending.keySet()) {
+			Record<?> record;
+			while ((record = release(uri)) != null) {
+				record.fail();
+			}
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Queue<Record<?>> records : pending.values()) {
+			size += records.size();
+		}
+		return size;
+	}
+
+	private Record<?> release(String uri) {
+		final Record<?>[] released = new Record<?>[1];
+		pending.computeIfPresent(uri, (key, records) -> {
+			released[0] = records.poll();
+			return records.isEmpty() ? null : records;
+		});
+		if (released[0] == null) {
+			log.debug("No pending record found for URI {}", uri);
+		}
+		return released[0];
+	}
+}
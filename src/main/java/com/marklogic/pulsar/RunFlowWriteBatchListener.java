@@ -1,9 +1,18 @@
 package com.marklogic.pulsar;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.marklogic.client.datamovement.WriteBatch;
 import com.marklogic.client.datamovement.WriteBatchListener;
 import com.marklogic.client.datamovement.WriteEvent;
@@ -14,6 +23,7 @@ import com.marklogic.hub.flow.RunFlowResponse;
 import com.marklogic.hub.flow.impl.FlowRunnerImpl;
 import com.marklogic.hub.impl.HubConfigImpl;
 
+import lombok.AccessLevel;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
@@ -21,6 +31,18 @@ import lombok.Setter;
 import lombok.ToString;
 import lombok.experimental.Accessors;
 
+/**
+ * Runs a DHF flow over the URIs of each successfully written batch.
+ *
+ * By default the flow runs on the DMSDK thread that wrote the batch. When a flow executor is configured via
+ * withFlowExecutor, flows run on a bounded pool of their own so ingestion and harmonization overlap. When every
+ * flow thread is busy and the flow queue is full, the DMSDK thread runs the flow itself, which slows the
+ * WriteBatcher and in turn the sink down to what the flows can keep up with.
+ *
+ * When coalescing is configured via withCoalescing, the URIs of successive batches are collected into a window
+ * and the flow runs once per window: as soon as the window holds the configured number of URIs, or when the
+ * configured delay has passed since the window's first batch, whichever comes first.
+ */
 @Data
 @Setter
 @Getter
@@ -32,55 +54,288 @@ public class RunFlowWriteBatchListener extends LoggingObject implements WriteBat
 	private String flowName;
 	private List<String> steps;
 	private boolean logResponse;
+	/*
+	 * When true the source query is cts.query() over a serialized documentQuery, whose URIs are a plain JSON
+	 * array, rather than a cts.documentQuery() call with one string literal per URI.
+	 */
+	private boolean serializedSourceQuery;
 	private HubConfigImpl hubConfig;
 
+	@Setter(AccessLevel.NONE)
+	@Getter(AccessLevel.NONE)
+	@ToString.Exclude
+	private ThreadPoolExecutor flowExecutor;
+
+	/*
+	 * A FlowRunner per thread, reused for every flow that thread runs.
+	 */
+	@Setter(AccessLevel.NONE)
+	@Getter(AccessLevel.NONE)
+	@ToString.Exclude
+	private final ThreadLocal<FlowRunner> flowRunners = ThreadLocal.withInitial(() -> new FlowRunnerImpl(hubConfig));
+
+	@Setter(AccessLevel.NONE)
+	@Getter(AccessLevel.NONE)
+	@ToString.Exclude
+	private int coalesceUriCount;
+
+	@Setter(AccessLevel.NONE)
+	@Getter(AccessLevel.NONE)
+	@ToString.Exclude
+	private long coalesceMaxDelayMillis;
+
+	@Setter(AccessLevel.NONE)
+	@Getter(AccessLevel.NONE)
+	@ToString.Exclude
+	private ScheduledExecutorService windowTimer;
+
+	/*
+	 * The window collecting URIs for the next flow run; guarded by windowLock.
+	 */
+	@Setter(AccessLevel.NONE)
+	@Getter(AccessLevel.NONE)
+	@ToString.Exclude
+	private FlowWindow window;
+
+	@Setter(AccessLevel.NONE)
+	@Getter(AccessLevel.NONE)
+	@ToString.Exclude
+	private final Object windowLock = new Object();
+
+	@Setter(AccessLevel.NONE)
+	private final AtomicLong flowsSubmitted = new AtomicLong();
+	@Setter(AccessLevel.NONE)
+	private final AtomicLong flowsCompleted = new AtomicLong();
+	@Setter(AccessLevel.NONE)
+	private final AtomicLong flowsFailed = new AtomicLong();
+	@Setter(AccessLevel.NONE)
+	private final AtomicLong flowMillis = new AtomicLong();
+
 	public RunFlowWriteBatchListener(String flowName, List<String> steps, HubConfigImpl hubConfig) {
 		this.flowName = flowName;
 		this.steps = steps;
 		this.hubConfig = hubConfig;
 	}
 
+	/**
+	 * Runs flows on a dedicated pool of threadCount threads, with up to queueSize flows waiting for a thread.
+	 */
+	public RunFlowWriteBatchListener withFlowExecutor(int threadCount, int queueSize) {
+		flowExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(Math.max(queueSize, 1)),
+				new ThreadFactoryBuilder().setNameFormat("dhf-flow-" + flowName + "-%d").setDaemon(true).build(),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		return this;
+	}
+
+	/**
+	 * Runs the flow once per uriCount URIs, or once maxDelayMillis after the first batch of a window,
+	 * instead of once per batch.
+	 */
+	public RunFlowWriteBatchListener withCoalescing(int uriCount, long maxDelayMillis) {
+		coalesceUriCount = uriCount;
+		coalesceMaxDelayMillis = maxDelayMillis;
+		windowTimer = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("dhf-flow-window-" + flowName + "-%d").setDaemon(true).build());
+		return this;
+	}
+
 	@Override
 	public void processEvent(WriteBatch batch) {
-		FlowInputs inputs = buildFlowInputs(batch);
+		if (windowTimer == null) {
+			submitFlow(buildFlowInputs(batch), batch.getJobBatchNumber());
+			return;
+		}
+		FlowWindow ready = null;
+		synchronized (windowLock) {
+			if (window == null) {
+				window = new FlowWindow(batch.getBatcher().getJobId() + "-" + batch.getJobBatchNumber(),
+						batch.getJobBatchNumber(), coalesceUriCount + batch.getItems().length);
+				final FlowWindow opened = window;
+				window.deadline = windowTimer.schedule(() -> flushWindow(opened), coalesceMaxDelayMillis, TimeUnit.MILLISECONDS);
+			}
+			for (WriteEvent event : WriteBatchDocuments.of(batch)) {
+				window.uris.add(event.getTargetUri());
+			}
+			if (window.uris.size() >= coalesceUriCount) {
+				ready = closeWindow();
+			}
+		}
+		if (ready != null) {
+			submitFlow(buildFlowInputs(ready.jobId, buildSourceQuery(ready.uris)), ready.firstBatchNumber);
+		}
+	}
 
-		FlowRunner flowRunner = new FlowRunnerImpl(hubConfig);
-		RunFlowResponse response = flowRunner.runFlow(inputs);
-		flowRunner.awaitCompletion();
+	/**
+	 * Runs the flow for the URIs collected so far, if any.
+	 */
+	public void flushWindow() {
+		flushWindow(null);
+	}
 
-		if (logResponse) {
-			logger.info(format("Flow response for batch number %d:\n%s", batch.getJobBatchNumber(), response.toJson()));
+	/*
+	 * A deadline only flushes the window it was scheduled for; that window may already have been closed
+	 * by reaching its URI count while the deadline was waiting for the lock.
+	 */
+	private void flushWindow(FlowWindow expected) {
+		FlowWindow ready = null;
+		synchronized (windowLock) {
+			if (expected == null || window == expected) {
+				ready = closeWindow();
+			}
 		}
+		if (ready != null) {
+			submitFlow(buildFlowInputs(ready.jobId, buildSourceQuery(ready.uris)), ready.firstBatchNumber);
+		}
+	}
+
+	private FlowWindow closeWindow() {
+		FlowWindow closed = window;
+		if (closed != null) {
+			closed.deadline.cancel(false);
+			window = null;
+		}
+		return closed;
+	}
+
+	private void submitFlow(FlowInputs inputs, long batchNumber) {
+		flowsSubmitted.incrementAndGet();
+		if (flowExecutor != null) {
+			flowExecutor.execute(() -> runFlow(inputs, batchNumber));
+		} else {
+			runFlow(inputs, batchNumber);
+		}
+	}
+
+	protected void runFlow(FlowInputs inputs, long batchNumber) {
+		long start = System.currentTimeMillis();
+		try {
+			FlowRunner flowRunner = flowRunners.get();
+			RunFlowResponse response = flowRunner.runFlow(inputs);
+			flowRunner.awaitCompletion();
+			flowsCompleted.incrementAndGet();
+
+			if (logResponse) {
+				logger.info(format("Flow response for batch number %d:\n%s", batchNumber, response.toJson()));
+			}
+		} catch (RuntimeException e) {
+			flowsFailed.incrementAndGet();
+			logger.error(format("Flow %s failed for batch number %d: %s", flowName, batchNumber, e.getMessage()), e);
+		} finally {
+			flowMillis.addAndGet(System.currentTimeMillis() - start);
+		}
+	}
+
+	/**
+	 * Number of flows waiting for a flow thread; always 0 when flows run on the DMSDK threads.
+	 */
+	public int getQueuedFlows() {
+		return flowExecutor != null ? flowExecutor.getQueue().size() : 0;
+	}
+
+	/**
+	 * Runs the flow for any open window, stops accepting flows and waits up to the given time for queued and
+	 * running flows to finish.
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		if (windowTimer != null) {
+			flushWindow();
+			windowTimer.shutdownNow();
+		}
+		if (flowExecutor == null) {
+			return true;
+		}
+		flowExecutor.shutdown();
+		return flowExecutor.awaitTermination(timeout, unit);
 	}
 
 	protected FlowInputs buildFlowInputs(WriteBatch batch) {
+		return buildFlowInputs(batch.getBatcher().getJobId() + "-" + batch.getJobBatchNumber(), buildSourceQuery(batch));
+	}
+
+	protected FlowInputs buildFlowInputs(String jobId, String sourceQuery) {
 		FlowInputs inputs = new FlowInputs(flowName);
 		if (steps != null) {
 			inputs.setSteps(steps);
 		}
-		inputs.setJobId(batch.getBatcher().getJobId() + "-" + batch.getJobBatchNumber());
+		inputs.setJobId(jobId);
 
 		Map<String, Object> options = new HashMap<>();
-		options.put("sourceQuery", buildSourceQuery(batch));
+		options.put("sourceQuery", sourceQuery);
 		inputs.setOptions(options);
 
 		return inputs;
 	}
 
 	protected String buildSourceQuery(WriteBatch batch) {
-		StringBuilder sb = new StringBuilder("cts.documentQuery([");
+		List<WriteEvent> documents = WriteBatchDocuments.of(batch);
+		List<String> uris = new ArrayList<>(documents.size());
+		for (WriteEvent event : documents) {
+			uris.add(event.getTargetUri());
+		}
+		return buildSourceQuery(uris);
+	}
+
+	/*
+	 * The buffer is sized up front from the URI lengths so that large batches are built without regrowing it.
+	 * URIs are escaped, so a quote or backslash in a URI can't break the query.
+	 */
+	protected String buildSourceQuery(List<String> uris) {
+		int size = 64;
+		for (String uri : uris) {
+			size += uri.length() + 3;
+		}
+		StringBuilder sb = new StringBuilder(size);
+		final char quote = serializedSourceQuery ? '"' : '\'';
+		sb.append(serializedSourceQuery ? "cts.query({\"documentQuery\":{\"uris\":[" : "cts.documentQuery([");
 		boolean firstOne = true;
-		for (WriteEvent event : batch.getItems()) {
+		for (String uri : uris) {
 			if (!firstOne) {
-				sb.append(",");
+				sb.append(',');
 			}
-			sb.append(String.format("'%s'", event.getTargetUri()));
+			sb.append(quote);
+			appendEscaped(sb, uri, quote);
+			sb.append(quote);
 			firstOne = false;
 		}
-		return sb.append("])").toString();
+		return sb.append(serializedSourceQuery ? "]}})" : "])").toString();
+	}
+
+	/*
+	 * Escapes a string for a quoted literal that is valid both as JavaScript and, with a double quote, as JSON.
+	 */
+	private static void appendEscaped(StringBuilder sb, String value, char quote) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == quote || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+				sb.append("\\u");
+				String hex = Integer.toHexString(c);
+				for (int pad = hex.length(); pad < 4; pad++) {
+					sb.append('0');
+				}
+				sb.append(hex);
+			} else {
+				sb.append(c);
+			}
+		}
 	}
 
 	public boolean isLogResponse() {
 		return logResponse;
 	}
+
+	private static class FlowWindow {
+		private final String jobId;
+		private final long firstBatchNumber;
+		private final List<String> uris;
+		private ScheduledFuture<?> deadline;
+
+		FlowWindow(String jobId, long firstBatchNumber, int capacity) {
+			this.jobId = jobId;
+			this.firstBatchNumber = firstBatchNumber;
+			this.uris = new ArrayList<>(capacity);
+		}
+	}
 }
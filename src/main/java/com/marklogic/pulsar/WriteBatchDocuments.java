@@ -0,0 +1,33 @@
+package com.marklogic.pulsar;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.marklogic.client.datamovement.WriteBatch;
+import com.marklogic.client.datamovement.WriteEvent;
+
+/**
+ * The documents of a WriteBatch. A WriteBatcher with default metadata sends that metadata with every batch as an
+ * extra item that has no URI or content; it is not a document, so batch listeners must leave it out.
+ */
+public final class WriteBatchDocuments {
+
+	public static boolean isDocument(WriteEvent event) {
+		return event.getTargetUri() != null;
+	}
+
+	public static List<WriteEvent> of(WriteBatch batch) {
+		WriteEvent[] items = batch.getItems();
+		List<WriteEvent> documents = new ArrayList<>(items.length);
+		for (WriteEvent event : items) {
+			if (isDocument(event)) {
+				documents.add(event);
+			}
+		}
+		return documents;
+	}
+
+	private WriteBatchDocuments() {
+
+	}
+}
@@ -1,11 +1,16 @@
 package com.marklogic.pulsar.config;
+import com.marklogic.pulsar.MetricsReporter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.pulsar.io.core.*;
+import org.springframework.scheduling.Trigger;
+import org.springframework.scheduling.TriggerContext;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.scheduling.support.CronTrigger;
 
+import java.util.Date;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Consumer;
 
 /**
@@ -13,12 +18,32 @@ import java.util.function.Consumer;
  * BatchSource developers using this should pass the json string of a map that contains
  * "__CRON__" key with the appropriate cron expression. The triggerer will trigger based on this expression.
  *
+ * Optional keys:
+ * "__POOL_SIZE__" - threads of the scheduler, default 1.
+ * "__JITTER_MS__" - each trigger is delayed by a random 0 to __JITTER_MS__ milliseconds, so that many sources on
+ * the same schedule do not all query MarkLogic at the same moment. Default 0.
+ * "__MISSED_FIRE__" - FIRE (default) triggers late when a fire was delayed, for example by a long GC pause or a
+ * busy scheduler; SKIP drops a fire that is more than "__MAX_LAG_MS__" (default 60000) late and waits for the next.
+ *
+ * "__METRICS_INTERVAL_MS__" - how often skipped fires are reported, default 60000; 0 disables the trigger metrics.
+ *
+ * The lag of every fire is recorded as the cron_trigger_lag_ms metric, and skipped fires as cron_trigger_skipped.
  */
 @Slf4j
 public class CronTriggerer implements BatchSourceTriggerer {
   public static final String CRON_KEY = "__CRON__";
+  public static final String POOL_SIZE_KEY = "__POOL_SIZE__";
+  public static final String JITTER_KEY = "__JITTER_MS__";
+  public static final String MISSED_FIRE_KEY = "__MISSED_FIRE__";
+  public static final String MAX_LAG_KEY = "__MAX_LAG_MS__";
+  public static final String METRICS_INTERVAL_KEY = "__METRICS_INTERVAL_MS__";
   private String cronExpression;
   private ThreadPoolTaskScheduler scheduler;
+  private SourceContext sourceContext;
+  private long jitterMillis;
+  private boolean skipMissedFires;
+  private long maxLagMillis;
+  private MetricsReporter metrics;
 
   @Override
   public void init(Map<String, Object> config, SourceContext sourceContext) {
@@ -27,18 +52,71 @@ public class CronTriggerer implements BatchSourceTriggerer {
     } else {
       throw new IllegalArgumentException("Cron Trigger is not provided with Cron String");
     }
+    this.sourceContext = sourceContext;
+    jitterMillis = getLong(config, JITTER_KEY, 0);
+    maxLagMillis = getLong(config, MAX_LAG_KEY, 60000);
+    String missedFire = String.valueOf(config.getOrDefault(MISSED_FIRE_KEY, "FIRE")).trim().toUpperCase();
+    if (!"FIRE".equals(missedFire) && !"SKIP".equals(missedFire)) {
+      throw new IllegalArgumentException("Unsupported " + MISSED_FIRE_KEY + ": " + missedFire);
+    }
+    skipMissedFires = "SKIP".equals(missedFire);
+    long metricsInterval = getLong(config, METRICS_INTERVAL_KEY, 60000);
+    if (metricsInterval > 0) {
+      metrics = new MetricsReporter(sourceContext::recordMetric).start(metricsInterval, "marklogic-cron-metrics-%d");
+    }
     scheduler = new ThreadPoolTaskScheduler();
+    scheduler.setPoolSize((int) getLong(config, POOL_SIZE_KEY, 1));
     scheduler.setThreadNamePrefix(String.format("%s/%s/%s-cron-triggerer-",
       sourceContext.getTenant(), sourceContext.getNamespace(), sourceContext.getSourceName()));
 
-    log.info("Initialized CronTrigger with expression: {}", cronExpression);
+    log.info("Initialized CronTrigger with expression: {}, jitter: {}ms, missed fires: {}",
+      cronExpression, jitterMillis, missedFire);
+  }
+
+  /*
+   * Values in the triggerer config may arrive as numbers or as strings.
+   */
+  public static long getLong(Map<String, Object> config, String key, long defaultValue) {
+    Object value = config.get(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    long result = value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString().trim());
+    if (result < 0) {
+      throw new IllegalArgumentException(key + " must not be negative: " + value);
+    }
+    return result;
   }
 
   @Override
   public void start(Consumer<String> trigger) {
 
     scheduler.initialize();
-    scheduler.schedule(() -> trigger.accept("CRON"), new CronTrigger(cronExpression));
+    ScheduledCronTrigger cronTrigger = new ScheduledCronTrigger(new CronTrigger(cronExpression));
+    scheduler.schedule(() -> fire(trigger, cronTrigger.getScheduledTime()), cronTrigger);
+  }
+
+  /*
+   * Called by the scheduler each time the cron expression fires.
+   */
+  public void fire(Consumer<String> trigger, long scheduledTime) {
+    long lag = System.currentTimeMillis() - scheduledTime;
+    if (metrics != null) {
+      metrics.record("cron_trigger_lag_ms", lag);
+    }
+    if (skipMissedFires && lag > maxLagMillis) {
+      log.warn("Skipping a trigger that fired {}ms late", lag);
+      if (metrics != null) {
+        metrics.increment("cron_trigger_skipped");
+      }
+      return;
+    }
+    if (jitterMillis > 0) {
+      long delay = ThreadLocalRandom.current().nextLong(jitterMillis + 1);
+      scheduler.schedule(() -> trigger.accept("CRON"), new Date(System.currentTimeMillis() + delay));
+    } else {
+      trigger.accept("CRON");
+    }
   }
 
   @Override
@@ -46,5 +124,33 @@ public class CronTriggerer implements BatchSourceTriggerer {
     if (scheduler != null) {
       scheduler.shutdown();
     }
+    if (metrics != null) {
+      metrics.stop();
+    }
+  }
+
+  /*
+   * Remembers when the current fire was due, so its lag can be measured.
+   */
+  public static class ScheduledCronTrigger implements Trigger {
+    private final Trigger delegate;
+    private volatile long scheduledTime;
+
+    public ScheduledCronTrigger(Trigger delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public Date nextExecutionTime(TriggerContext triggerContext) {
+      Date next = delegate.nextExecutionTime(triggerContext);
+      if (next != null) {
+        scheduledTime = next.getTime();
+      }
+      return next;
+    }
+
+    public long getScheduledTime() {
+      return scheduledTime;
+    }
   }
 }
\ No newline at end of file
@@ -92,6 +92,9 @@ public class MarkLogicAbstractConfig implements Serializable {
 	@FieldDoc(required = false, defaultValue = "", help = "Mutual Authentication for Basic or Digest: true or false")
 	private Boolean mlSSLMutualAuth;
 
+	@FieldDoc(required = false, defaultValue = "60000", help = "How often in milliseconds the connector reports its metrics; 0 disables them")
+	private Long mlMetricsIntervalMillis;
+
 	public static MarkLogicAbstractConfig load(String yamlFile) throws IOException {
 		final ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
 		final MarkLogicAbstractConfig cfg = mapper.readValue(new File(yamlFile), MarkLogicAbstractConfig.class);
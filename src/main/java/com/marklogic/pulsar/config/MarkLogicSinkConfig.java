@@ -58,6 +58,9 @@ public class MarkLogicSinkConfig extends MarkLogicAbstractConfig implements Seri
 
 	@FieldDoc(required = false, defaultValue = "", help = "The JSON path for ID Strategy")
 	private String mlIdStrategyPath;
+
+	@FieldDoc(required = false, defaultValue = "MD5", help = "The hash algorithm for the HASH and PULSAR_META_HASHED ID Strategies; MD5, SHA-256 or MURMUR3_128")
+	private String mlIdHashAlgorithm;
 	
 	@FieldDoc(required = false, defaultValue = "", help = "The Type of DHF. The options are dhs or onprem or cloud.")
 	private String dhfType;
@@ -74,6 +77,69 @@ public class MarkLogicSinkConfig extends MarkLogicAbstractConfig implements Seri
 	@FieldDoc(required = false, defaultValue = "", help = "The DHF flow steps to run. If blank entire flow to run.")
 	private String dhfFlowSteps;
 	
+	@FieldDoc(required = false, defaultValue = "0", help = "Number of threads that run DHF flows. If 0, each flow runs on the DMSDK thread that wrote the batch.")
+	private Integer dhfFlowThreadCount;
+	
+	@FieldDoc(required = false, defaultValue = "10", help = "Number of DHF flow runs that can wait for a flow thread before ingestion is slowed down. Applies only when dhfFlowThreadCount is greater than 0.")
+	private Integer dhfFlowQueueSize;
+	
+	@FieldDoc(required = false, defaultValue = "0", help = "Number of written URIs to collect across batches before running the DHF flow once over all of them. If 0, the flow runs once per batch.")
+	private Integer dhfFlowBatchUriCount;
+	
+	@FieldDoc(required = false, defaultValue = "1000", help = "Maximum milliseconds to wait for dhfFlowBatchUriCount URIs before running the DHF flow over the URIs collected so far.")
+	private Long dhfFlowBatchMaxDelayMillis;
+	
+	@FieldDoc(required = false, defaultValue = "DOCUMENT_QUERY", help = "How the URIs of a batch are passed to the DHF flow: DOCUMENT_QUERY for a cts.documentQuery call, or SERIALIZED for cts.query over a serialized documentQuery with the URIs as a JSON array.")
+	private String dhfFlowSourceQueryFormat;
+	
+	@FieldDoc(required = false, defaultValue = "false", help = "Ack each Pulsar record only after the DMSDK batch containing it is written to MarkLogic")
+	private Boolean mlAckOnCommit;
+	
+	@FieldDoc(required = false, defaultValue = "false", help = "Send mlDocumentCollections and mlDocumentPermissions once per batch as default metadata instead of with every document")
+	private Boolean mlUseDefaultMetadata;
+	
+	@FieldDoc(required = false, defaultValue = "3", help = "Number of times a failed batch is retried before it is given up on")
+	private Integer mlRetryMaxAttempts;
+	
+	@FieldDoc(required = false, defaultValue = "1000", help = "Delay in milliseconds before the first retry of a failed batch; it doubles with each further attempt")
+	private Long mlRetryInitialBackoffMillis;
+	
+	@FieldDoc(required = false, defaultValue = "30000", help = "Longest delay in milliseconds between retries of a failed batch")
+	private Long mlRetryMaxBackoffMillis;
+	
+	@FieldDoc(required = false, defaultValue = "1", help = "Number of threads that retry failed batches")
+	private Integer mlRetryThreadCount;
+	
+	@FieldDoc(required = false, defaultValue = "", help = "Pulsar topic that receives the documents of batches that failed every retry")
+	private String mlDeadLetterTopic;
+	
+	@FieldDoc(required = false, defaultValue = "", help = "Service URL of the Pulsar cluster that mlDeadLetterTopic belongs to; required when mlDeadLetterTopic is set")
+	private String mlDeadLetterServiceUrl;
+	
+	@FieldDoc(required = false, defaultValue = "", help = "Class name of the Pulsar authentication plugin used to publish dead letters. Ex. org.apache.pulsar.client.impl.auth.AuthenticationToken")
+	private String mlDeadLetterAuthPlugin;
+	
+	@FieldDoc(required = false, defaultValue = "", sensitive = true, help = "Parameters of mlDeadLetterAuthPlugin. Ex. token:<jwt> or file:///path/to/token")
+	private String mlDeadLetterAuthParams;
+	
+	@FieldDoc(required = false, defaultValue = "", help = "Trusted TLS certificates file for a pulsar+ssl:// dead-letter service URL")
+	private String mlDeadLetterTlsTrustCertsFilePath;
+	
+	@FieldDoc(required = false, defaultValue = "false", help = "Accept untrusted TLS certificates from the dead-letter brokers")
+	private Boolean mlDeadLetterTlsAllowInsecureConnection;
+	
+	@FieldDoc(required = false, defaultValue = "false", help = "Verify the host name of the dead-letter brokers against their TLS certificates")
+	private Boolean mlDeadLetterTlsHostnameVerification;
+	
+	@FieldDoc(required = false, defaultValue = "0", help = "Number of records to collect before building their documents and adding them to the WriteBatcher together; 0 or 1 adds each record as it arrives")
+	private Integer mlWriteBufferSize;
+	
+	@FieldDoc(required = false, defaultValue = "100", help = "Longest time in milliseconds records wait in a partly filled write buffer")
+	private Long mlWriteBufferMaxDelayMillis;
+	
+	@FieldDoc(required = false, defaultValue = "false", help = "Generate the URIs and build the documents of a write buffer in parallel on the common fork-join pool")
+	private Boolean mlWriteBufferParallel;
+	
 	public static MarkLogicSinkConfig load(String yamlFile) throws IOException {
 		final ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
 		final MarkLogicSinkConfig cfg = mapper.readValue(new File(yamlFile), MarkLogicSinkConfig.class);
@@ -96,4 +162,4 @@ public class MarkLogicSinkConfig extends MarkLogicAbstractConfig implements Seri
 		return this;
 	}
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -38,6 +38,42 @@ public class MarkLogicSourceConfig extends MarkLogicAbstractConfig implements Se
 	@FieldDoc(required = false, defaultValue = "", help = "The query to be used for Source Connector is serialized or not")
 	private String dmsdkIsSourceQuerySerialized; 
 
+	@FieldDoc(required = false, defaultValue = "1000", help = "Maximum number of exported documents that can be waiting to be published to Pulsar before the export pauses")
+	private Integer mlSourceMaxPendingRecords;
+
+	@FieldDoc(required = false, defaultValue = "67108864", help = "Maximum total bytes of exported documents that can be waiting to be published to Pulsar before the export pauses")
+	private Long mlSourceMaxPendingBytes;
+
+	@FieldDoc(required = false, defaultValue = "NONE", help = "Export only documents added or changed since the last run: NONE, TIMESTAMP (commit timestamp) or PATH_RANGE (a dateTime path range index)")
+	private String mlSourceIncrementalMode;
+
+	@FieldDoc(required = false, defaultValue = "", help = "The path of the dateTime path range index used when mlSourceIncrementalMode is PATH_RANGE. Ex. //insertTS")
+	private String mlSourceIncrementalPath;
+
+	@FieldDoc(required = false, defaultValue = "60000", help = "With PATH_RANGE, how far behind the current time the upper bound and checkpoint of a run are set, so documents stamped before they commit are not missed")
+	private Long mlSourceIncrementalSafetyLagMillis;
+
+	@FieldDoc(required = false, defaultValue = "false", help = "Key each record by document URI and add format, collections and last-modified as message properties")
+	private Boolean mlSourceEmitMetadata;
+
+	@FieldDoc(required = false, defaultValue = "false", help = "Discover one task per forest so that source instances share an export instead of each running all of it")
+	private Boolean mlSourceSplitByForest;
+
+	@FieldDoc(required = false, defaultValue = "false", help = "Keep the progress of each export in the state store so that an interrupted export resumes where it left off")
+	private Boolean mlSourceResumable;
+
+	@FieldDoc(required = false, defaultValue = "false", help = "Evaluate a non-serialized dmsdkSourceQuery once and reuse the serialized query on later runs")
+	private Boolean mlSourceCacheQuery;
+
+	@FieldDoc(required = false, defaultValue = "QUEUE", help = "What a trigger does while earlier runs are still outstanding: QUEUE, SKIP, QUEUE_ONE or CANCEL_AND_RESTART")
+	private String mlSourceOverlapPolicy;
+
+	@FieldDoc(required = false, defaultValue = "30000", help = "How long close waits for export batches in flight to finish before stopping the export")
+	private Long mlSourceShutdownTimeoutMillis;
+	
+	@FieldDoc(required = false, defaultValue = "60000", help = "How long an incremental or resumable run waits for Pulsar to ack its records before deciding whether it finished cleanly")
+	private Long mlSourceAckTimeoutMillis;
+
 	
 	public static MarkLogicSourceConfig load(String yamlFile) throws IOException {
 		final ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
@@ -1,20 +1,36 @@
 package com.marklogic.pulsar.database;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
 
 import com.marklogic.client.document.DocumentWriteOperation;
 import com.marklogic.client.ext.util.DefaultDocumentPermissionsParser;
 import com.marklogic.client.impl.DocumentWriteOperationImpl;
 import com.marklogic.client.io.DocumentMetadataHandle;
+import com.marklogic.client.io.DocumentMetadataHandle.Capability;
+import com.marklogic.client.io.DocumentMetadataHandle.DocumentPermissions;
 import com.marklogic.client.io.marker.AbstractWriteHandle;
 
+/**
+ * Builds a DocumentWriteOperation for each record. Collections and permissions are parsed once, when they are
+ * configured, into a metadata template that is overlaid onto each record's own metadata. Once configured, a
+ * builder can be shared by concurrent calls to build.
+ *
+ * When the template is registered as the WriteBatcher's default metadata (see withTemplateAsDefaultMetadata),
+ * records without metadata of their own are built with no metadata at all and pick up the batch default.
+ */
 public class DocumentWriteOperationBuilder {
 
+	private static final String[] NO_COLLECTIONS = new String[0];
+
 	private DocumentWriteOperation.OperationType operationType = DocumentWriteOperation.OperationType.DOCUMENT_WRITE;
 	private String uriPrefix;
 	private String uriSuffix;
-	private String collections;
-	private String permissions;
+	private String[] collections = NO_COLLECTIONS;
+	private Map<String, Set<Capability>> permissions = Collections.emptyMap();
+	private boolean templateAsDefaultMetadata;
 	
 	public DocumentWriteOperation build(RecordContent record) throws IOException {
 		
@@ -25,11 +41,8 @@ public class DocumentWriteOperationBuilder {
 		if (content == null) {
 			throw new NullPointerException("'content' must not be null");
 		}
-		if (hasText(collections)) {
-			metadata.getCollections().addAll(collections.trim().split(","));
-		}
-		if (hasText(permissions)) {
-			new DefaultDocumentPermissionsParser().parsePermissions(permissions.trim(), metadata.getPermissions());
+		if (metadata != null || !templateAsDefaultMetadata) {
+			metadata = applyTemplate(metadata != null ? metadata : new DocumentMetadataHandle());
 		}
 
 		if (hasText(uriPrefix)) {
@@ -56,6 +69,23 @@ public class DocumentWriteOperationBuilder {
 		return new DocumentWriteOperationImpl(operationType, uri, metadata, content);
 	}
 
+	/**
+	 * Returns the metadata template on its own, for use as WriteBatcher default metadata.
+	 */
+	public DocumentMetadataHandle buildDefaultMetadata() {
+		return applyTemplate(new DocumentMetadataHandle());
+	}
+
+	private DocumentMetadataHandle applyTemplate(DocumentMetadataHandle metadata) {
+		if (collections.length > 0) {
+			metadata.getCollections().addAll(collections);
+		}
+		if (!permissions.isEmpty()) {
+			metadata.getPermissions().putAll(permissions);
+		}
+		return metadata;
+	}
+
 	private boolean hasText(String val) {
 		return val != null && val.trim().length() > 0;
 	}
@@ -71,12 +101,33 @@ public class DocumentWriteOperationBuilder {
 	}
 
 	public DocumentWriteOperationBuilder withCollections(String collections) {
-		this.collections = collections;
+		this.collections = hasText(collections) ? collections.trim().split(",") : NO_COLLECTIONS;
 		return this;
 	}
 
+	/*
+	 * The capability sets are shared by every document built from here on, so they are made unmodifiable.
+	 */
 	public DocumentWriteOperationBuilder withPermissions(String permissions) {
-		this.permissions = permissions;
+		if (hasText(permissions)) {
+			DocumentPermissions parsed = new DocumentMetadataHandle().getPermissions();
+			new DefaultDocumentPermissionsParser().parsePermissions(permissions.trim(), parsed);
+			for (Map.Entry<String, Set<Capability>> entry : parsed.entrySet()) {
+				entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+			}
+			this.permissions = Collections.unmodifiableMap(parsed);
+		} else {
+			this.permissions = Collections.emptyMap();
+		}
+		return this;
+	}
+
+	/*
+	 * A document's own metadata replaces the batch default rather than merging with it, so records that carry
+	 * additional metadata still get the full template.
+	 */
+	public DocumentWriteOperationBuilder withTemplateAsDefaultMetadata(boolean templateAsDefaultMetadata) {
+		this.templateAsDefaultMetadata = templateAsDefaultMetadata;
 		return this;
 	}
 
@@ -1,54 +1,43 @@
 package com.marklogic.pulsar.id.strategy;
 
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.UUID;
 import lombok.extern.slf4j.Slf4j;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonPointer;
 import com.marklogic.client.io.marker.AbstractWriteHandle;
 
+/**
+ * Immutable and thread-safe; a single instance is shared by all records of a sink.
+ */
 @Slf4j
 public class HashedJSONPathsStrategy implements IdStrategy{
 	
-	
-	private String [] paths;
+	private final JsonPointerExtractor extractor;
+	private final IdHasher hasher;
 	
 	public HashedJSONPathsStrategy(String [] paths) {
-		this.paths = paths;
+		this(paths, IdHasher.forAlgorithm(IdHasher.MD5));
+	}
+	
+	public HashedJSONPathsStrategy(String [] paths, IdHasher hasher) {
+		JsonPointer [] pointers = new JsonPointer[paths.length];
+		for (int i=0; i<paths.length; i++) {
+			pointers[i] = JsonPointer.compile(paths[i].trim());
+		}
+		this.extractor = new JsonPointerExtractor(pointers);
+		this.hasher = hasher;
 	}
 	
 	@Override
 	public String generateId(AbstractWriteHandle content, String topic, String partition, Long offset) {
-		ObjectMapper om = new ObjectMapper();
-		String valueString = "";
 		try {
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			JsonNode node = om.readTree(content.toString());
-			for (int i=0; i<paths.length; i++) {
-				valueString = valueString + node.at(paths[i].trim()).asText();
-			}
-			String id = bytesToHex(md.digest(valueString.getBytes()));
-			return id;
+			return hasher.hash(extractor.extract(content));
 		}
 		catch (IOException e) {
-			log.warn("IOException. Not creating MD5 URI, instead generating UUID");
-			return UUID.randomUUID().toString();
-		} 
-		catch (NoSuchAlgorithmException e) {
-			log.warn("NoSuchAlgorithmException. Not creating MD5 URI, instead generating UUID");
+			log.warn("IOException. Not creating " + hasher.getAlgorithm() + " URI, instead generating UUID");
 			return UUID.randomUUID().toString();
 		}
 	}
-
-	private static String bytesToHex(byte[] bytes) {
-    StringBuilder sb = new StringBuilder();
-    for (byte b : bytes) {
-        sb.append(String.format("%02x", b));
-    }
-    return sb.toString();
-	}
     
 } 
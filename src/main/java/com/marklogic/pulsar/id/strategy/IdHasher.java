@@ -0,0 +1,153 @@
+package com.marklogic.pulsar.id.strategy;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Hashes a sequence of strings into a lowercase hex id, as if the strings had been concatenated and UTF-8 encoded.
+ * The parts are fed to the hash one at a time, so no concatenated String is built. Digests and encoding buffers
+ * are kept per thread, so an IdHasher can be shared by every record of a sink.
+ *
+ * Supported algorithms are MD5 (the default), SHA-256 and MURMUR3_128. MURMUR3_128 is not a cryptographic hash;
+ * it is much cheaper and is enough when the id only needs to be a deduplication key.
+ */
+public abstract class IdHasher {
+
+	public static final String MD5 = "MD5";
+	public static final String SHA_256 = "SHA-256";
+	public static final String MURMUR3_128 = "MURMUR3_128";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	public static IdHasher forAlgorithm(String algorithm) {
+		String name = (algorithm != null && algorithm.trim().length() > 0) ? algorithm.trim().toUpperCase() : MD5;
+		switch (name) {
+			case MD5:
+			case SHA_256:
+				return new DigestHasher(name);
+			case MURMUR3_128:
+				return new Murmur3Hasher();
+			default:
+				throw new IllegalArgumentException(String.format(
+						"Unsupported id hash algorithm '%s'; expected one of %s, %s, %s", algorithm, MD5, SHA_256, MURMUR3_128));
+		}
+	}
+
+	public abstract String getAlgorithm();
+
+	public abstract String hash(String... parts);
+
+	static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int b = bytes[i] & 0xff;
+			chars[i * 2] = HEX[b >>> 4];
+			chars[i * 2 + 1] = HEX[b & 0x0f];
+		}
+		return new String(chars);
+	}
+
+	private static class DigestHasher extends IdHasher {
+
+		private final String algorithm;
+		private final ThreadLocal<DigestState> state;
+
+		DigestHasher(String algorithm) {
+			this.algorithm = algorithm;
+			// Fail when the sink is opened rather than on the first record.
+			newDigest(algorithm);
+			this.state = ThreadLocal.withInitial(() -> new DigestState(newDigest(algorithm)));
+		}
+
+		@Override
+		public String getAlgorithm() {
+			return algorithm;
+		}
+
+		@Override
+		public String hash(String... parts) {
+			DigestState s = state.get();
+			s.digest.reset();
+			for (String part : parts) {
+				s.update(part);
+			}
+			return toHex(s.digest.digest());
+		}
+
+		private static MessageDigest newDigest(String algorithm) {
+			try {
+				return MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("Unable to create a " + algorithm + " digest: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/*
+	 * A digest plus a scratch buffer that strings are UTF-8 encoded into before being fed to the digest.
+	 * Encodes the same bytes as String.getBytes(UTF_8), including '?' for unpaired surrogates.
+	 */
+	private static class DigestState {
+
+		private final MessageDigest digest;
+		private byte[] buffer = new byte[256];
+
+		DigestState(MessageDigest digest) {
+			this.digest = digest;
+		}
+
+		void update(String value) {
+			int length = value.length();
+			if (buffer.length < length * 3) {
+				buffer = new byte[length * 3];
+			}
+			int pos = 0;
+			for (int i = 0; i < length; i++) {
+				char c = value.charAt(i);
+				if (c < 0x80) {
+					buffer[pos++] = (byte) c;
+				} else if (c < 0x800) {
+					buffer[pos++] = (byte) (0xc0 | (c >> 6));
+					buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+				} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, value.charAt(++i));
+					buffer[pos++] = (byte) (0xf0 | (cp >> 18));
+					buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					buffer[pos++] = (byte) (0x80 | (cp & 0x3f));
+				} else if (Character.isSurrogate(c)) {
+					buffer[pos++] = (byte) '?';
+				} else {
+					buffer[pos++] = (byte) (0xe0 | (c >> 12));
+					buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+			digest.update(buffer, 0, pos);
+		}
+	}
+
+	private static class Murmur3Hasher extends IdHasher {
+
+		private static final HashFunction FUNCTION = Hashing.murmur3_128();
+
+		@Override
+		public String getAlgorithm() {
+			return MURMUR3_128;
+		}
+
+		@Override
+		public String hash(String... parts) {
+			Hasher hasher = FUNCTION.newHasher();
+			for (String part : parts) {
+				hasher.putString(part, StandardCharsets.UTF_8);
+			}
+			return hasher.hash().toString();
+		}
+	}
+}
@@ -1,28 +1,35 @@
 package com.marklogic.pulsar.id.strategy;
 
-import java.util.Map;
-
 import com.marklogic.pulsar.config.MarkLogicSinkConfig;
 
+/**
+ * Builds the IdStrategy for a sink. The sink resolves its strategy once when it is opened and reuses it for
+ * every record, so every strategy returned here must be thread-safe. The strategies that carry no configuration
+ * are shared across sinks; the hashed strategies depend on mlIdHashAlgorithm and are built per sink.
+ */
 public  class IdStrategyFactory {
 	
+	private static final IdStrategy DEFAULT_STRATEGY = new DefaultStrategy();
+	private static final IdStrategy PULSAR_META_STRATEGY = new PulsarMetaStrategy();
+	
 	public static IdStrategy getIdStrategy(MarkLogicSinkConfig config) {
 		String strategyType = (String) config.getMlIdStrategyForURI();
 		String strategyPaths= (String) config.getMlIdStrategyPath();
+		String hashAlgorithm = config.getMlIdHashAlgorithm();
 		
 		switch((strategyType != null) ? strategyType : "UUID") {
 			case "JSONPATH":
 				return (new JSONPathStrategy(strategyPaths.trim().split(",")[0]));
 			case "HASH":
-				return (new HashedJSONPathsStrategy(strategyPaths.trim().split(",")));
+				return (new HashedJSONPathsStrategy(strategyPaths.trim().split(","), IdHasher.forAlgorithm(hashAlgorithm)));
 			case "UUID":
-				return (new DefaultStrategy());
+				return DEFAULT_STRATEGY;
 			case "PULSAR_META_WITH_SLASH":
-				return (new PulsarMetaStrategy());
+				return PULSAR_META_STRATEGY;
 			case "PULSAR_META_HASHED":
-				return (new HashedPulsarMetaStrategy());
+				return (new HashedPulsarMetaStrategy(IdHasher.forAlgorithm(hashAlgorithm)));
 			default: 
-				return (new DefaultStrategy());
+				return DEFAULT_STRATEGY;
 		}
 	}
 	
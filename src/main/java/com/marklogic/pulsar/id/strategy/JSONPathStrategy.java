@@ -3,25 +3,25 @@ package com.marklogic.pulsar.id.strategy;
 import java.io.IOException;
 import java.util.UUID;
 import lombok.extern.slf4j.Slf4j;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonPointer;
 import com.marklogic.client.io.marker.AbstractWriteHandle;
 
+/**
+ * Immutable and thread-safe; a single instance is shared by all records of a sink.
+ */
 @Slf4j
 public class JSONPathStrategy implements IdStrategy{
 	
-	private String path;
+	private final JsonPointerExtractor extractor;
 	
 	public JSONPathStrategy (String path) {
-		this.path = path;
+		this.extractor = new JsonPointerExtractor(JsonPointer.compile(path.trim()));
 	}
 	
 	@Override
 	public String generateId(AbstractWriteHandle content, String topic, String partition, Long offset) {
-		ObjectMapper om = new ObjectMapper();
 		try {
-			JsonNode node = om.readTree(content.toString());
-			String id = node.at(path).asText();
+			String id = extractor.extract(content)[0];
 			return id;
 		}
 		catch (IOException e) {
@@ -0,0 +1,159 @@
+package com.marklogic.pulsar.id.strategy;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.core.JsonToken;
+import com.marklogic.client.io.BytesHandle;
+import com.marklogic.client.io.marker.AbstractWriteHandle;
+
+/**
+ * Resolves a fixed set of JSON pointers against a document in a single streaming pass, without building a tree.
+ * Subtrees that no pointer can match are skipped, and parsing stops as soon as every pointer has been resolved.
+ * Values are rendered the same way as JsonNode.asText(): scalars as text, objects, arrays and missing values as "".
+ *
+ * Immutable and thread-safe.
+ */
+public class JsonPointerExtractor {
+
+	private static final JsonFactory FACTORY = new JsonFactory();
+
+	private final JsonPointer[] pointers;
+
+	public JsonPointerExtractor(JsonPointer... pointers) {
+		this.pointers = pointers.clone();
+	}
+
+	public String[] extract(AbstractWriteHandle content) throws IOException {
+		if (content instanceof BytesHandle) {
+			return extract(((BytesHandle) content).get());
+		}
+		try (JsonParser parser = FACTORY.createParser(content.toString())) {
+			return extract(parser);
+		}
+	}
+
+	public String[] extract(byte[] content) throws IOException {
+		try (JsonParser parser = FACTORY.createParser(content)) {
+			return extract(parser);
+		}
+	}
+
+	private String[] extract(JsonParser parser) throws IOException {
+		Extraction extraction = new Extraction(pointers.length);
+		if (parser.nextToken() != null) {
+			visit(parser, pointers.clone(), extraction);
+		}
+		return extraction.values;
+	}
+
+	/*
+	 * The parser is positioned on the first token of a value. remaining[i] holds what is left of pointer i
+	 * below this value, or null when the path to this value does not lie on pointer i. Returns true once
+	 * every pointer has been resolved, so callers can stop reading.
+	 */
+	private boolean visit(JsonParser parser, JsonPointer[] remaining, Extraction extraction) throws IOException {
+		JsonToken token = parser.currentToken();
+		boolean descend = false;
+		for (int i = 0; i < remaining.length; i++) {
+			if (remaining[i] == null) {
+				continue;
+			}
+			if (remaining[i].matches()) {
+				extraction.resolve(i, asText(parser, token));
+				remaining[i] = null;
+			} else {
+				descend = true;
+			}
+		}
+		if (extraction.isComplete()) {
+			return true;
+		}
+		if (!descend || !token.isStructStart()) {
+			parser.skipChildren();
+			return false;
+		}
+
+		JsonPointer[] children = new JsonPointer[remaining.length];
+		if (token == JsonToken.START_OBJECT) {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				boolean any = false;
+				for (int i = 0; i < remaining.length; i++) {
+					children[i] = remaining[i] != null && remaining[i].matchesProperty(name) ? remaining[i].tail() : null;
+					any |= children[i] != null;
+				}
+				parser.nextToken();
+				if (any) {
+					if (visit(parser, children, extraction)) {
+						return true;
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		} else {
+			int index = 0;
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				boolean any = false;
+				for (int i = 0; i < remaining.length; i++) {
+					children[i] = remaining[i] != null && remaining[i].matchesElement(index) ? remaining[i].tail() : null;
+					any |= children[i] != null;
+				}
+				if (any) {
+					if (visit(parser, children, extraction)) {
+						return true;
+					}
+				} else {
+					parser.skipChildren();
+				}
+				index++;
+			}
+		}
+		return false;
+	}
+
+	private static String asText(JsonParser parser, JsonToken token) throws IOException {
+		switch (token) {
+			case VALUE_STRING:
+			case VALUE_NUMBER_INT:
+			case VALUE_TRUE:
+			case VALUE_FALSE:
+			case VALUE_NULL:
+				return parser.getText();
+			case VALUE_NUMBER_FLOAT:
+				return String.valueOf(parser.getDoubleValue());
+			default:
+				return "";
+		}
+	}
+
+	private static class Extraction {
+		private final String[] values;
+		private final boolean[] resolved;
+		private int unresolved;
+
+		Extraction(int size) {
+			values = new String[size];
+			resolved = new boolean[size];
+			unresolved = size;
+			for (int i = 0; i < size; i++) {
+				values[i] = "";
+			}
+		}
+
+		void resolve(int i, String value) {
+			if (!resolved[i]) {
+				values[i] = value;
+				resolved[i] = true;
+				unresolved--;
+			}
+		}
+
+		boolean isComplete() {
+			return unresolved == 0;
+		}
+	}
+}
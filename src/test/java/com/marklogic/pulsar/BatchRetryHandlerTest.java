@@ -0,0 +1,91 @@
+package com.marklogic.pulsar;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import com.marklogic.client.datamovement.WriteBatch;
+import com.marklogic.client.datamovement.WriteEvent;
+import com.marklogic.client.datamovement.impl.WriteBatchImpl;
+import com.marklogic.client.datamovement.impl.WriteEventImpl;
+
+public class BatchRetryHandlerTest {
+
+	static class FailingWriteBatcher extends MockWriteBatcher {
+		final AtomicInteger retries = new AtomicInteger();
+		final int failures;
+
+		FailingWriteBatcher(int failures) {
+			this.failures = failures;
+		}
+
+		@Override
+		public void retry(WriteBatch batch) {
+			if (retries.incrementAndGet() <= failures) {
+				throw new RuntimeException("Server unavailable");
+			}
+		}
+	}
+
+	private WriteBatch batchFor(MockWriteBatcher batcher) {
+		return new WriteBatchImpl().withBatcher(batcher)
+				.withItems(new WriteEvent[] {new WriteEventImpl().withTargetUri("uri1")});
+	}
+
+	@Test
+	void retriesUntilWritten() throws InterruptedException {
+		FailingWriteBatcher batcher = new FailingWriteBatcher(2);
+		AtomicInteger exhausted = new AtomicInteger();
+		BatchRetryHandler handler = new BatchRetryHandler(3, 1, 5, 1, (batch, failure) -> exhausted.incrementAndGet());
+
+		handler.processFailure(batchFor(batcher), new RuntimeException("Server unavailable"));
+
+		assertTrue(handler.shutdown(5, TimeUnit.SECONDS));
+		assertEquals(batcher.retries.get(), 3);
+		assertEquals(exhausted.get(), 0);
+	}
+
+	@Test
+	void exhaustedAfterMaxAttempts() throws InterruptedException {
+		FailingWriteBatcher batcher = new FailingWriteBatcher(Integer.MAX_VALUE);
+		CountDownLatch exhausted = new CountDownLatch(1);
+		BatchRetryHandler handler = new BatchRetryHandler(2, 1, 5, 1, (batch, failure) -> exhausted.countDown());
+
+		handler.processFailure(batchFor(batcher), new RuntimeException("Server unavailable"));
+
+		assertTrue(exhausted.await(5, TimeUnit.SECONDS));
+		assertEquals(batcher.retries.get(), 2);
+		handler.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void waitingBatchesExhaustedOnShutdown() throws InterruptedException {
+		FailingWriteBatcher batcher = new FailingWriteBatcher(0);
+		AtomicInteger exhausted = new AtomicInteger();
+		BatchRetryHandler handler = new BatchRetryHandler(3, 60000, 60000, 1, (batch, failure) -> exhausted.incrementAndGet());
+
+		handler.processFailure(batchFor(batcher), new RuntimeException("Server unavailable"));
+		handler.shutdown(10, TimeUnit.MILLISECONDS);
+
+		assertEquals(exhausted.get(), 1);
+		assertEquals(batcher.retries.get(), 0);
+	}
+
+	@Test
+	void backoffGrowsAndIsCapped() {
+		BatchRetryHandler handler = new BatchRetryHandler(10, 100, 1000, 1, (batch, failure) -> {});
+		for (int i = 0; i < 20; i++) {
+			long first = handler.backoffMillis(1);
+			assertTrue(first >= 50 && first <= 100);
+			long third = handler.backoffMillis(3);
+			assertTrue(third >= 200 && third <= 400);
+			long capped = handler.backoffMillis(40);
+			assertTrue(capped >= 500 && capped <= 1000);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.marklogic.pulsar;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.scheduling.support.SimpleTriggerContext;
+import org.testng.annotations.Test;
+
+import com.marklogic.pulsar.config.CronTriggerer;
+
+public class CronTriggererTest {
+
+	@Test
+	void scheduledTimeOfNextFireIsRemembered() {
+		CronTriggerer.ScheduledCronTrigger trigger = new CronTriggerer.ScheduledCronTrigger(
+				new org.springframework.scheduling.support.CronTrigger("0 0 * * * ?"));
+		Date next = trigger.nextExecutionTime(new SimpleTriggerContext());
+		assertEquals(trigger.getScheduledTime(), next.getTime());
+	}
+
+	@Test
+	void numbersMayBeStrings() {
+		Map<String, Object> config = new HashMap<>();
+		config.put(CronTriggerer.JITTER_KEY, "250");
+		config.put(CronTriggerer.POOL_SIZE_KEY, 2);
+		assertEquals(CronTriggerer.getLong(config, CronTriggerer.JITTER_KEY, 0), 250);
+		assertEquals(CronTriggerer.getLong(config, CronTriggerer.POOL_SIZE_KEY, 1), 2);
+		assertEquals(CronTriggerer.getLong(config, CronTriggerer.MAX_LAG_KEY, 60000), 60000);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	void negativeValuesRejected() {
+		Map<String, Object> config = new HashMap<>();
+		config.put(CronTriggerer.JITTER_KEY, -1);
+		CronTriggerer.getLong(config, CronTriggerer.JITTER_KEY, 0);
+	}
+
+	private static Map<String, Object> skippingConfig(long metricsInterval) {
+		Map<String, Object> config = new HashMap<>();
+		config.put(CronTriggerer.CRON_KEY, "0 0 * * * ?");
+		config.put(CronTriggerer.MISSED_FIRE_KEY, "SKIP");
+		config.put(CronTriggerer.MAX_LAG_KEY, 1000);
+		config.put(CronTriggerer.METRICS_INTERVAL_KEY, metricsInterval);
+		return config;
+	}
+
+	@Test
+	void lateFireSkippedAndReported() {
+		TestContext context = new TestContext();
+		CronTriggerer triggerer = new CronTriggerer();
+		triggerer.init(skippingConfig(3600000), context.asSourceContext());
+		AtomicInteger triggered = new AtomicInteger();
+
+		triggerer.fire(reason -> triggered.incrementAndGet(), System.currentTimeMillis() - 5000);
+		assertTrue(context.metrics.get("cron_trigger_lag_ms") >= 5000);
+		triggerer.fire(reason -> triggered.incrementAndGet(), System.currentTimeMillis());
+		triggerer.stop();
+
+		assertEquals(triggered.get(), 1);
+		assertEquals(context.metrics.get("cron_trigger_skipped"), 1.0);
+	}
+
+	@Test
+	void noMetricsWhenDisabled() {
+		TestContext context = new TestContext();
+		CronTriggerer triggerer = new CronTriggerer();
+		triggerer.init(skippingConfig(0), context.asSourceContext());
+
+		triggerer.fire(reason -> { }, System.currentTimeMillis() - 5000);
+		triggerer.stop();
+
+		assertTrue(context.metrics.isEmpty());
+	}
+}
@@ -0,0 +1,81 @@
+package com.marklogic.pulsar;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.testng.annotations.Test;
+
+import com.marklogic.client.document.DocumentWriteOperation;
+import com.marklogic.client.io.DocumentMetadataHandle;
+import com.marklogic.client.io.DocumentMetadataHandle.Capability;
+import com.marklogic.client.io.StringHandle;
+import com.marklogic.pulsar.database.DocumentWriteOperationBuilder;
+import com.marklogic.pulsar.database.RecordContent;
+
+public class DocumentWriteOperationBuilderTest {
+
+	private DocumentWriteOperationBuilder builder = new DocumentWriteOperationBuilder()
+			.withCollections("c1,c2")
+			.withPermissions("rest-reader,read,rest-writer,update")
+			.withUriPrefix("/pulsar/")
+			.withUriSuffix(".json");
+
+	@Test
+	void templateAppliedWithoutAdditionalMetadata() throws IOException {
+		RecordContent record = new RecordContent();
+		record.setContent(new StringHandle("{}"));
+		record.setId("id1");
+
+		DocumentWriteOperation op = builder.build(record);
+		DocumentMetadataHandle metadata = (DocumentMetadataHandle) op.getMetadata();
+
+		assertEquals("/pulsar/id1.json", op.getUri());
+		assertEquals(2, metadata.getCollections().size());
+		assertTrue(metadata.getPermissions().get("rest-reader").contains(Capability.READ));
+		assertTrue(metadata.getPermissions().get("rest-writer").contains(Capability.UPDATE));
+	}
+
+	@Test
+	void templateOverlaysTopicCollection() throws IOException {
+		RecordContent first = new RecordContent();
+		first.setContent(new StringHandle("{}"));
+		first.setId("id1");
+		first.setAdditionalMetadata(new DocumentMetadataHandle().withCollections("topic"));
+		DocumentMetadataHandle firstMetadata = (DocumentMetadataHandle) builder.build(first).getMetadata();
+
+		RecordContent second = new RecordContent();
+		second.setContent(new StringHandle("{}"));
+		second.setId("id2");
+		DocumentMetadataHandle secondMetadata = (DocumentMetadataHandle) builder.build(second).getMetadata();
+
+		assertEquals(3, firstMetadata.getCollections().size());
+		assertTrue(firstMetadata.getCollections().contains("topic"));
+		assertEquals(2, secondMetadata.getCollections().size());
+	}
+
+	@Test
+	void templateAsDefaultMetadata() throws IOException {
+		DocumentWriteOperationBuilder defaultsBuilder = new DocumentWriteOperationBuilder()
+				.withCollections("c1,c2")
+				.withPermissions("rest-reader,read")
+				.withTemplateAsDefaultMetadata(true);
+
+		assertEquals(2, defaultsBuilder.buildDefaultMetadata().getCollections().size());
+
+		RecordContent plain = new RecordContent();
+		plain.setContent(new StringHandle("{}"));
+		plain.setId("id1");
+		assertNull(defaultsBuilder.build(plain).getMetadata());
+
+		RecordContent withTopic = new RecordContent();
+		withTopic.setContent(new StringHandle("{}"));
+		withTopic.setId("id2");
+		withTopic.setAdditionalMetadata(new DocumentMetadataHandle().withCollections("topic"));
+		DocumentMetadataHandle metadata = (DocumentMetadataHandle) defaultsBuilder.build(withTopic).getMetadata();
+		assertEquals(3, metadata.getCollections().size());
+		assertTrue(metadata.getPermissions().containsKey("rest-reader"));
+	}
+}
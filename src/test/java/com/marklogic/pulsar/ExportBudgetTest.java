@@ -0,0 +1,56 @@
+package com.marklogic.pulsar;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class ExportBudgetTest {
+
+	@Test
+	void blocksWhenRecordBudgetExhausted() throws InterruptedException {
+		ExportBudget budget = new ExportBudget(1, 1000);
+		budget.acquire(10);
+
+		CountDownLatch acquired = new CountDownLatch(1);
+		Thread exporter = new Thread(() -> {
+			try {
+				budget.acquire(10);
+				acquired.countDown();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		exporter.start();
+
+		assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+		budget.release(10);
+		assertTrue(acquired.await(5, TimeUnit.SECONDS));
+		assertEquals(1, budget.getRecords());
+		assertEquals(10, budget.getBytes());
+	}
+
+	@Test
+	void oversizedRecordAllowedWhenNothingInFlight() throws InterruptedException {
+		ExportBudget budget = new ExportBudget(10, 100);
+		budget.acquire(500);
+		assertEquals(500, budget.getBytes());
+		budget.release(500);
+		assertEquals(0, budget.getRecords());
+	}
+
+	@Test
+	void drainedOnceEveryRecordReleased() throws InterruptedException {
+		ExportBudget budget = new ExportBudget(10, 1000);
+		assertTrue(budget.awaitDrained(0, TimeUnit.MILLISECONDS));
+		budget.acquire(10);
+		assertFalse(budget.awaitDrained(50, TimeUnit.MILLISECONDS));
+
+		new Thread(() -> budget.release(10)).start();
+		assertTrue(budget.awaitDrained(5, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,104 @@
+package com.marklogic.pulsar;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+public class ExportProgressTest {
+
+	private ExportProgress newProgress(String... forests) {
+		ExportProgress.State state = new ExportProgress.State();
+		state.setQuery("{}");
+		state.setForests(Arrays.asList(forests));
+		return new ExportProgress(state);
+	}
+
+	private ExportProgress.Batch exported(ExportProgress progress, String forest, long number, String... uris) {
+		ExportProgress.Batch batch = progress.startBatch(forest, number, uris, 100);
+		for (int i = 0; i < uris.length; i++) {
+			batch.recordStarted();
+		}
+		batch.seal();
+		return batch;
+	}
+
+	@Test
+	void watermarkWaitsForEarlierBatches() {
+		ExportProgress progress = newProgress("f1");
+		ExportProgress.Batch second = exported(progress, "f1", 2, "/c", "/d");
+		second.recordDone();
+		second.recordDone();
+		assertNull(progress.getResumeAfter("f1"));
+
+		ExportProgress.Batch first = exported(progress, "f1", 1, "/a", "/b");
+		first.recordDone();
+		assertNull(progress.getResumeAfter("f1"));
+		first.recordDone();
+		assertEquals(progress.getResumeAfter("f1"), "/d");
+	}
+
+	@Test
+	void eachForestResumesFromItsOwnWatermark() {
+		ExportProgress progress = newProgress("f1", "f2");
+		exported(progress, "f1", 1, "/x").recordDone();
+		exported(progress, "f2", 1, "/m").recordDone();
+
+		assertEquals(progress.getResumeAfter("f1"), "/x");
+		assertEquals(progress.getResumeAfter("f2"), "/m");
+	}
+
+	@Test
+	void forestWithoutBatchesResumesFromTheBeginning() throws IOException {
+		ExportProgress progress = newProgress("f1", "empty");
+		exported(progress, "f1", 1, "/a").recordDone();
+
+		Map<String, String> resumePoints = ExportProgress.getResumePoints(ExportProgress.readState(progress.takeChangedState()));
+		assertEquals(new ArrayList<>(resumePoints.keySet()), Arrays.asList("f1", "empty"));
+		assertEquals(resumePoints.get("f1"), "/a");
+		assertNull(resumePoints.get("empty"));
+	}
+
+	@Test
+	void incompleteBatchNeverCounts() {
+		ExportProgress progress = newProgress("f1");
+		ExportProgress.Batch batch = progress.startBatch("f1", 1, new String[] {"/a", "/b"}, 100);
+		batch.recordStarted();
+		batch.seal();
+		batch.recordDone();
+		assertNull(progress.getResumeAfter("f1"));
+	}
+
+	@Test
+	void resumedRunRecordsItsOwnTimestamp() throws IOException {
+		ExportProgress first = newProgress("f1", "f2");
+		exported(first, "f1", 1, "/a").recordDone();
+		ExportProgress.State saved = ExportProgress.readState(first.takeChangedState());
+		assertEquals(saved.getServerTimestamp(), 100);
+
+		ExportProgress resumed = new ExportProgress(saved);
+		resumed.startBatch("f2", 1, new String[] {"/m"}, 200);
+		resumed.startBatch("f1", 1, new String[] {"/b"}, 300);
+		ExportProgress.State resaved = ExportProgress.readState(resumed.takeChangedState());
+
+		assertEquals(resaved.getServerTimestamp(), 200);
+		assertEquals(ExportProgress.getResumePoints(resaved).get("f1"), "/a");
+		assertNull(ExportProgress.getResumePoints(resaved).get("f2"));
+	}
+
+	@Test
+	void stateRoundTrips() throws IOException {
+		ExportProgress progress = newProgress("f1");
+		exported(progress, "f1", 1, "/a").recordDone();
+
+		ExportProgress.State state = ExportProgress.readState(progress.takeChangedState());
+		assertEquals(state.getLastUris().get("f1"), "/a");
+		assertEquals(state.getServerTimestamp(), 100);
+		assertNull(progress.takeChangedState());
+	}
+}
@@ -0,0 +1,31 @@
+package com.marklogic.pulsar;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+public class ExportSplitTest {
+
+	@Test
+	void forestSplitRoundTrips() throws IOException {
+		ExportSplit split = new ExportSplit("task-1-Documents", new ArrayList<>(Arrays.asList("Documents")), 1000);
+		ExportSplit copy = ExportSplit.fromBytes(split.toBytes());
+
+		assertEquals(copy, split);
+		assertFalse(copy.isWholeDatabase());
+	}
+
+	@Test
+	void splitWithoutForestsCoversWholeDatabase() throws IOException {
+		ExportSplit copy = ExportSplit.fromBytes("{\"name\":\"task-1\"}".getBytes("UTF-8"));
+
+		assertEquals(copy.getName(), "task-1");
+		assertTrue(copy.isWholeDatabase());
+	}
+}
@@ -0,0 +1,100 @@
+package com.marklogic.pulsar;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertSame;
+
+import java.nio.charset.StandardCharsets;
+
+import org.testng.annotations.Test;
+
+import com.marklogic.client.io.BytesHandle;
+import com.marklogic.client.io.StringHandle;
+import com.marklogic.pulsar.config.MarkLogicSinkConfig;
+import com.marklogic.pulsar.id.strategy.IdHasher;
+import com.marklogic.pulsar.id.strategy.IdStrategy;
+import com.marklogic.pulsar.id.strategy.IdStrategyFactory;
+
+public class IdStrategyTest {
+
+	private static final String CUSTOMER = "{ \"Customer\" : { \"id\" : 10001, \"name\" : \"Tim\"}}";
+
+	@Test
+	void statelessStrategiesAreShared() {
+		MarkLogicSinkConfig config = new MarkLogicSinkConfig();
+		config.setMlIdStrategyForURI("PULSAR_META_WITH_SLASH");
+		assertSame(IdStrategyFactory.getIdStrategy(config), IdStrategyFactory.getIdStrategy(config));
+	}
+
+	@Test
+	void jsonPath() {
+		MarkLogicSinkConfig config = new MarkLogicSinkConfig();
+		config.setMlIdStrategyForURI("JSONPATH");
+		config.setMlIdStrategyPath("/Customer/id");
+		IdStrategy strategy = IdStrategyFactory.getIdStrategy(config);
+		assertEquals("10001", strategy.generateId(new StringHandle(CUSTOMER), "topic", "0", 1L));
+	}
+
+	@Test
+	void jsonPathFromBytes() {
+		MarkLogicSinkConfig config = new MarkLogicSinkConfig();
+		config.setMlIdStrategyForURI("JSONPATH");
+		config.setMlIdStrategyPath("/Customer/name");
+		IdStrategy strategy = IdStrategyFactory.getIdStrategy(config);
+		BytesHandle content = new BytesHandle(CUSTOMER.getBytes(StandardCharsets.UTF_8));
+		assertEquals("Tim", strategy.generateId(content, "topic", "0", 1L));
+	}
+
+	@Test
+	void hashedJsonPaths() {
+		MarkLogicSinkConfig config = new MarkLogicSinkConfig();
+		config.setMlIdStrategyForURI("HASH");
+		config.setMlIdStrategyPath("/Customer/id, /Customer/name");
+		IdStrategy strategy = IdStrategyFactory.getIdStrategy(config);
+		assertEquals("9aeaec5290fd81782f69e16ab2f45b6c", strategy.generateId(new StringHandle(CUSTOMER), "topic", "0", 1L));
+	}
+
+	@Test
+	void pulsarMeta() {
+		MarkLogicSinkConfig config = new MarkLogicSinkConfig();
+		config.setMlIdStrategyForURI("PULSAR_META_WITH_SLASH");
+		IdStrategy strategy = IdStrategyFactory.getIdStrategy(config);
+		assertEquals("persistent/public/default/marklogic-topic/marklogic-topic-0/48792",
+				strategy.generateId(null, "persistent://public/default/marklogic-topic", "marklogic-topic-0", 48792L));
+	}
+
+	@Test
+	void pulsarMetaHashed() {
+		MarkLogicSinkConfig config = new MarkLogicSinkConfig();
+		config.setMlIdStrategyForURI("PULSAR_META_HASHED");
+		IdStrategy strategy = IdStrategyFactory.getIdStrategy(config);
+		assertEquals("9cdfc945708835835da746a35c5a7fca",
+				strategy.generateId(null, "persistent://public/default/marklogic-topic", "marklogic-topic-0", 48792L));
+
+		config.setMlIdHashAlgorithm("sha-256");
+		strategy = IdStrategyFactory.getIdStrategy(config);
+		assertEquals("f8c8709861a876fb4b01499db0b345ddd0d42c1df2e469162fd181fa3686de80",
+				strategy.generateId(null, "persistent://public/default/marklogic-topic", "marklogic-topic-0", 48792L));
+	}
+
+	@Test
+	void hasherEncodesUtf8LikeConcatenation() {
+		IdHasher md5 = IdHasher.forAlgorithm(null);
+		assertEquals("18b3a8cb65ca30961bc8af56e4f0b762", md5.hash("caf\u00e9", "\ud83d\ude00"));
+		assertEquals(md5.hash("ab", "c"), md5.hash("a", "bc"));
+	}
+
+	@Test
+	void murmur3() {
+		IdHasher murmur = IdHasher.forAlgorithm("MURMUR3_128");
+		String id = murmur.hash("10001", "Tim");
+		assertEquals(32, id.length());
+		assertEquals(id, murmur.hash("10001Tim"));
+		assertNotEquals(id, IdHasher.forAlgorithm("MD5").hash("10001Tim"));
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	void unknownHashAlgorithm() {
+		IdHasher.forAlgorithm("CRC32");
+	}
+}
@@ -0,0 +1,54 @@
+package com.marklogic.pulsar;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.core.JsonPointer;
+import com.marklogic.pulsar.id.strategy.JsonPointerExtractor;
+
+public class JsonPointerExtractorTest {
+
+	private static final String DOC = "{\"header\":{\"skip\":[1,2,{\"deep\":true}]},"
+			+ "\"Customer\":{\"id\":10001,\"name\":\"Tim\",\"score\":1.50,\"tags\":[\"a\",\"b\"],\"address\":{\"zip\":null}}}";
+
+	private String[] extract(String... pointers) throws IOException {
+		JsonPointer[] compiled = new JsonPointer[pointers.length];
+		for (int i = 0; i < pointers.length; i++) {
+			compiled[i] = JsonPointer.compile(pointers[i]);
+		}
+		return new JsonPointerExtractor(compiled).extract(DOC.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	void scalars() throws IOException {
+		String[] values = extract("/Customer/id", "/Customer/name", "/Customer/score", "/Customer/address/zip");
+		assertEquals("10001", values[0]);
+		assertEquals("Tim", values[1]);
+		assertEquals("1.5", values[2]);
+		assertEquals("null", values[3]);
+	}
+
+	@Test
+	void arrayElement() throws IOException {
+		assertEquals("b", extract("/Customer/tags/1")[0]);
+	}
+
+	@Test
+	void structuresAndMissingValuesAreEmpty() throws IOException {
+		String[] values = extract("/Customer/address", "/Customer/missing", "/Customer/address/zip");
+		assertEquals("", values[0]);
+		assertEquals("", values[1]);
+		assertEquals("null", values[2]);
+	}
+
+	@Test
+	void stopsOnceAllPointersResolved() throws IOException {
+		JsonPointerExtractor extractor = new JsonPointerExtractor(JsonPointer.compile("/id"));
+		byte[] truncated = "{\"id\":\"abc\",\"rest\":[1,2,".getBytes(StandardCharsets.UTF_8);
+		assertEquals("abc", extractor.extract(truncated)[0]);
+	}
+}
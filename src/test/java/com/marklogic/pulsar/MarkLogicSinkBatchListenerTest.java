@@ -0,0 +1,67 @@
+package com.marklogic.pulsar;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.marklogic.client.io.DocumentMetadataHandle;
+import com.marklogic.pulsar.config.MarkLogicSinkConfig;
+
+/**
+ * The sink's batch listeners with mlUseDefaultMetadata, where every batch carries an extra default-metadata item.
+ */
+public class MarkLogicSinkBatchListenerTest {
+
+	private MarkLogicSink sink;
+	private MockWriteBatcher batcher;
+	private Map<String, Double> recorded;
+
+	@BeforeMethod
+	void setUp() {
+		recorded = new HashMap<>();
+		sink = new MarkLogicSink();
+		sink.setMetrics(new MetricsReporter(recorded::put));
+		sink.setPendingRecords(new PendingRecordTracker());
+		batcher = new MockWriteBatcher();
+		batcher.withDefaultMetadata(new DocumentMetadataHandle());
+	}
+
+	@Test
+	void writtenBatchCountsOnlyDocuments() {
+		sink.getSampledAddTimes().put("uri1", System.nanoTime());
+
+		sink.recordBatchWritten(batcher.batchOf(1, "uri1", "uri2"));
+		sink.getMetrics().report();
+
+		assertEquals(recorded.get("documents_written"), 2.0);
+		assertEquals(recorded.get("batches_written"), 1.0);
+		assertTrue(recorded.containsKey("write_latency_ms"));
+		assertTrue(sink.getSampledAddTimes().isEmpty());
+	}
+
+	@Test
+	void exhaustedBatchFailsItsRecords() throws InterruptedException {
+		MarkLogicSinkConfig config = new MarkLogicSinkConfig();
+		config.setMlRetryMaxAttempts(0);
+		TestRecord first = new TestRecord(1);
+		TestRecord second = new TestRecord(2);
+		sink.getPendingRecords().track("uri1", first);
+		sink.getPendingRecords().track("uri2", second);
+		sink.getSampledAddTimes().put("uri2", System.nanoTime());
+		BatchRetryHandler retryHandler = sink.buildRetryHandler(config);
+
+		retryHandler.processFailure(batcher.batchOf(1, "uri1", "uri2"), new IOException("Injected failure"));
+		assertTrue(retryHandler.shutdown(1, TimeUnit.SECONDS));
+
+		assertTrue(first.failed && second.failed);
+		assertEquals(sink.getPendingRecords().size(), 0);
+		assertTrue(sink.getSampledAddTimes().isEmpty());
+	}
+}
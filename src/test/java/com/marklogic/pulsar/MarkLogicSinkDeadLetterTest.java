@@ -0,0 +1,61 @@
+package com.marklogic.pulsar;
+
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
+import java.util.Map;
+
+import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.testng.annotations.Test;
+
+import com.marklogic.pulsar.config.MarkLogicSinkConfig;
+
+public class MarkLogicSinkDeadLetterTest {
+
+	private final MarkLogicSink sink = new MarkLogicSink();
+
+	private static MarkLogicSinkConfig config(String serviceUrl) {
+		MarkLogicSinkConfig config = new MarkLogicSinkConfig();
+		config.setMlDeadLetterTopic("persistent://public/default/marklogic-dead-letters");
+		config.setMlDeadLetterServiceUrl(serviceUrl);
+		return config;
+	}
+
+	@Test
+	void noClientWithoutDeadLetterTopic() throws PulsarClientException {
+		assertNull(sink.buildDeadLetterClient(new MarkLogicSinkConfig()));
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	void serviceUrlRequiredWithDeadLetterTopic() throws PulsarClientException {
+		sink.buildDeadLetterClient(config(" "));
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	void sinkDoesNotOpenWithoutServiceUrl() throws Exception {
+		Map<String, Object> config = TestHelper.createMap();
+		config.put("mlDeadLetterTopic", "marklogic-dead-letters");
+		new MarkLogicSink().open(config, new TestContext().asSinkContext());
+	}
+
+	@Test
+	void authenticationAndTlsApplied() throws PulsarClientException {
+		MarkLogicSinkConfig config = config("pulsar+ssl://broker.example.com:6651");
+		config.setMlDeadLetterAuthPlugin("org.apache.pulsar.client.impl.auth.AuthenticationToken");
+		config.setMlDeadLetterAuthParams("token:abc");
+		config.setMlDeadLetterTlsHostnameVerification(true);
+
+		// Building the client does not connect to the broker.
+		try (PulsarClient client = sink.buildDeadLetterClient(config).build()) {
+			assertNotNull(client);
+		}
+	}
+
+	@Test(expectedExceptions = PulsarClientException.class)
+	void unknownAuthenticationPluginRejected() throws PulsarClientException {
+		MarkLogicSinkConfig config = config("pulsar://broker.example.com:6650");
+		config.setMlDeadLetterAuthPlugin("com.example.NoSuchAuthentication");
+		sink.buildDeadLetterClient(config);
+	}
+}
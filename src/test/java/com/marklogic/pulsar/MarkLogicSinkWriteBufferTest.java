@@ -0,0 +1,75 @@
+package com.marklogic.pulsar;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.marklogic.client.document.DocumentWriteOperation;
+import com.marklogic.client.io.Format;
+import com.marklogic.pulsar.config.MarkLogicSinkConfig;
+import com.marklogic.pulsar.database.DocumentWriteOperationBuilder;
+import com.marklogic.pulsar.id.strategy.IdStrategyFactory;
+
+public class MarkLogicSinkWriteBufferTest {
+
+	private MarkLogicSink sink;
+	private List<List<String>> addAllCalls;
+
+	@BeforeMethod
+	void setUp() {
+		addAllCalls = new ArrayList<>();
+		MarkLogicSinkConfig config = new MarkLogicSinkConfig();
+		sink = new MarkLogicSink();
+		sink.setMlConfig(config);
+		sink.setWriteBatcher(new MockWriteBatcher() {
+			@Override
+			public void addAll(Stream<? extends DocumentWriteOperation> operations) {
+				addAllCalls.add(operations.map(DocumentWriteOperation::getUri).collect(Collectors.toList()));
+			}
+		});
+		sink.setIdStrategy(IdStrategyFactory.getIdStrategy(config));
+		sink.setDocumentFormat(Format.JSON);
+		sink.setDocumentWriteOperationBuilder(new DocumentWriteOperationBuilder().withUriPrefix("/buffered/"));
+		sink.setWriteBufferSize(3);
+	}
+
+	@Test
+	void fullBufferAddedInOneCall() {
+		List<TestRecord> records = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			records.add(new TestRecord(i));
+			sink.write(records.get(i));
+		}
+
+		assertEquals(addAllCalls.size(), 1);
+		assertEquals(addAllCalls.get(0).size(), 3);
+		assertTrue(addAllCalls.get(0).get(0).startsWith("/buffered/"));
+		assertTrue(records.get(2).acked);
+		assertFalse(records.get(3).acked);
+		assertEquals(sink.getBufferedRecords(), 1);
+	}
+
+	@Test
+	void flushAddsPartialBuffer() {
+		sink.setParallelBuild(true);
+		TestRecord first = new TestRecord(1);
+		TestRecord second = new TestRecord(2);
+		sink.write(first);
+		sink.write(second);
+		sink.flushWriteBuffer();
+		sink.flushWriteBuffer();
+
+		assertEquals(addAllCalls.size(), 1);
+		assertEquals(addAllCalls.get(0).size(), 2);
+		assertTrue(first.acked && second.acked);
+		assertEquals(sink.getBufferedRecords(), 0);
+	}
+}
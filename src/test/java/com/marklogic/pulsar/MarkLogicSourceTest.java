@@ -0,0 +1,360 @@
+package com.marklogic.pulsar;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.QName;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import com.marklogic.client.document.DocumentRecord;
+import com.marklogic.client.io.DocumentMetadataHandle;
+import com.marklogic.client.io.Format;
+import com.marklogic.client.query.RawCtsQueryDefinition;
+import com.marklogic.pulsar.config.MarkLogicSourceConfig;
+
+/**
+ * Opens the source against a host that is never contacted; the MarkLogic client only connects when a request is
+ * made.
+ */
+public class MarkLogicSourceTest {
+
+	private MarkLogicSource source;
+
+	private static Map<String, Object> sourceConfig(Object... keysAndValues) {
+		Map<String, Object> config = TestHelper.createMap();
+		config.put("mlMetricsIntervalMillis", 0);
+		config.put("dmsdkSourceQuery", "{\"collectionQuery\":{\"uris\":[\"customers\"]}}");
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			config.put((String) keysAndValues[i], keysAndValues[i + 1]);
+		}
+		return config;
+	}
+
+	private MarkLogicSource openSource(Map<String, Object> config) throws Exception {
+		return openSource(config, new TestContext());
+	}
+
+	private MarkLogicSource openSource(Map<String, Object> config, TestContext context) throws Exception {
+		return openSource(new MarkLogicSource(), config, context);
+	}
+
+	private MarkLogicSource openSource(MarkLogicSource source, Map<String, Object> config, TestContext context)
+			throws Exception {
+		this.source = source;
+		source.open(config, context.asSourceContext());
+		return source;
+	}
+
+	@AfterMethod(alwaysRun = true)
+	void closeSource() throws Exception {
+		if (source != null) {
+			source.close();
+			source = null;
+		}
+	}
+
+	@Test
+	void timestampScriptBoundsBySerializedQueryAndCheckpoint() throws Exception {
+		Map<String, Object> config = sourceConfig("mlSourceIncrementalMode", "timestamp");
+
+		String script = openSource(config).buildIncrementalQueryScript(MarkLogicSourceConfig.load(config));
+
+		assertTrue(script.contains("const upper = xdmp.requestTimestamp();"));
+		assertTrue(script.contains("cts.query(xdmp.toJSON({\"collectionQuery\":{\"uris\":[\"customers\"]}}).root)"));
+		assertTrue(script.contains("if (checkpoint) { queries.push(cts.afterQuery(xs.unsignedLong(checkpoint))); }"));
+		assertFalse(script.contains("pathRangeQuery"));
+		assertTrue(script.endsWith("xdmp.toJsonString({query: cts.andQuery(queries).toObject(), checkpoint: String(upper)})"));
+	}
+
+	@Test
+	void pathRangeScriptBoundsBothSides() throws Exception {
+		Map<String, Object> config = sourceConfig("mlSourceIncrementalMode", "PATH_RANGE",
+				"mlSourceIncrementalPath", "//insertTS",
+				"dmsdkIsSourceQuerySerialized", "false",
+				"dmsdkSourceQuery", "cts.collectionQuery('customers')");
+
+		String script = openSource(config).buildIncrementalQueryScript(MarkLogicSourceConfig.load(config));
+
+		assertTrue(script.contains("const upper = fn.currentDateTime().subtract(xs.dayTimeDuration('PT60.000S'));"));
+		assertTrue(script.contains("const queries = [cts.collectionQuery('customers'), cts.pathRangeQuery(path, '<=', upper)];"));
+		assertTrue(script.contains("if (checkpoint) { queries.push(cts.pathRangeQuery(path, '>', xs.dateTime(checkpoint))); }"));
+		assertFalse(script.contains("afterQuery"));
+	}
+
+	@Test
+	void pathRangeUpperBoundLagsBehindByTheSafetyLag() throws Exception {
+		Map<String, Object> config = sourceConfig("mlSourceIncrementalMode", "PATH_RANGE",
+				"mlSourceIncrementalPath", "//insertTS",
+				"mlSourceIncrementalSafetyLagMillis", 1500);
+
+		String script = openSource(config).buildIncrementalQueryScript(MarkLogicSourceConfig.load(config));
+
+		assertTrue(script.contains("const upper = fn.currentDateTime().subtract(xs.dayTimeDuration('PT1.500S'));"));
+		assertTrue(script.endsWith("checkpoint: String(upper)})"));
+	}
+
+	@Test
+	void recordCarriesUriKeyMetadataAndEventTime() throws Exception {
+		MarkLogicSource source = openSource(sourceConfig("mlSourceEmitMetadata", true));
+		byte[] value = "{\"id\":1}".getBytes(StandardCharsets.UTF_8);
+
+		MarkLogicSource.MarkLogicRecord record = source.toRecord(
+				document("/customers/1.json", "2021-03-04T05:06:07.123+01:00", "customers"), value);
+
+		assertEquals(record.getValue(), value);
+		assertEquals(record.getKey().get(), "/customers/1.json");
+		assertEquals(record.getEventTime().get().longValue(),
+				OffsetDateTime.parse("2021-03-04T05:06:07.123+01:00").toInstant().toEpochMilli());
+		assertEquals(record.getProperties().get("uri"), "/customers/1.json");
+		assertEquals(record.getProperties().get("format"), "JSON");
+		assertEquals(record.getProperties().get("collections"), "customers");
+		assertEquals(record.getProperties().get("lastModified"), "2021-03-04T05:06:07.123+01:00");
+	}
+
+	@Test
+	void unparseableLastModifiedLeavesNoEventTime() throws Exception {
+		MarkLogicSource source = openSource(sourceConfig("mlSourceEmitMetadata", true));
+
+		MarkLogicSource.MarkLogicRecord record = source.toRecord(document("/customers/2.json", "yesterday"), new byte[0]);
+
+		assertFalse(record.getEventTime().isPresent());
+		assertEquals(record.getProperties().get("lastModified"), "yesterday");
+		assertFalse(record.getProperties().containsKey("collections"));
+	}
+
+	@Test
+	void recordWithoutMetadataHasOnlyAValue() throws Exception {
+		MarkLogicSource source = openSource(sourceConfig());
+
+		MarkLogicSource.MarkLogicRecord record = source.toRecord(
+				document("/customers/3.json", "2021-03-04T05:06:07Z", "customers"), new byte[] {1});
+
+		assertFalse(record.getKey().isPresent());
+		assertFalse(record.getEventTime().isPresent());
+		assertTrue(record.getProperties().isEmpty());
+	}
+
+	@Test
+	void cachedQueryDefinitionReusedAcrossRuns() throws Exception {
+		Map<String, Object> config = sourceConfig("mlSourceCacheQuery", true);
+		MarkLogicSource source = openSource(config);
+		String serialized = source.buildSerializedQuery(MarkLogicSourceConfig.load(config));
+
+		RawCtsQueryDefinition first = source.buildQueryDefinition(serialized);
+		assertSame(source.buildQueryDefinition(serialized), first);
+		assertNotSame(source.buildQueryDefinition("{\"collectionQuery\":{\"uris\":[\"orders\"]}}"), first);
+
+		source.invalidateQueryCache();
+		assertNotSame(source.buildQueryDefinition(serialized), first);
+	}
+
+	@Test
+	void queryDefinitionRebuiltWhenCachingIsOff() throws Exception {
+		Map<String, Object> config = sourceConfig();
+		MarkLogicSource source = openSource(config);
+		String serialized = source.buildSerializedQuery(MarkLogicSourceConfig.load(config));
+
+		assertNotSame(source.buildQueryDefinition(serialized), source.buildQueryDefinition(serialized));
+	}
+
+	private static ExportSplit split(String name) {
+		return new ExportSplit(name, new ArrayList<>(), 1);
+	}
+
+	@Test
+	void skipAdmitsARunOnlyWhenNothingIsOutstanding() throws Exception {
+		TestContext context = new TestContext();
+		MarkLogicSource source = openSource(sourceConfig("mlSourceOverlapPolicy", "SKIP"), context);
+
+		assertTrue(source.admitRun(1));
+		source.registerRun(1, Collections.singletonList("run-1"));
+		assertFalse(source.admitRun(2));
+
+		source.completeTask(split("run-1"));
+		assertTrue(source.admitRun(3));
+		assertTrue(source.loadOutstandingRuns().isEmpty());
+		assertFalse(context.state.get(MarkLogicSource.TASK_DONE_STATE_KEY + "-run-1").hasRemaining());
+	}
+
+	@Test
+	void queueOneLetsOneRunWaitBehindTheActiveOne() throws Exception {
+		MarkLogicSource source = openSource(sourceConfig("mlSourceOverlapPolicy", "queue_one"));
+
+		assertTrue(source.admitRun(1));
+		source.registerRun(1, Arrays.asList("run-1-a", "run-1-b"));
+		assertTrue(source.admitRun(2));
+		source.registerRun(2, Arrays.asList("run-2-a", "run-2-b"));
+		assertFalse(source.admitRun(3));
+
+		source.completeTask(split("run-1-a"));
+		assertFalse(source.admitRun(4));
+		source.completeTask(split("run-1-b"));
+		assertTrue(source.admitRun(5));
+	}
+
+	@Test
+	void taskCompletedTwiceCountsOnce() throws Exception {
+		MarkLogicSource source = openSource(sourceConfig("mlSourceOverlapPolicy", "SKIP"));
+		source.registerRun(1, Arrays.asList("run-1-a", "run-1-b"));
+
+		source.completeTask(split("run-1-a"));
+		source.completeTask(split("run-1-a"));
+		assertFalse(source.admitRun(2));
+
+		source.completeTask(split("run-1-b"));
+		assertTrue(source.admitRun(3));
+	}
+
+	@Test
+	void onlyPublishedTasksAreOutstanding() throws Exception {
+		MarkLogicSource source = openSource(new MarkLogicSource() {
+			@Override
+			protected List<ExportSplit> buildSplits(long discoveredAt) {
+				return Arrays.asList(split("task-a"), split("task-b"), split("task-c"));
+			}
+		}, sourceConfig("mlSourceOverlapPolicy", "SKIP"), new TestContext());
+		List<String> published = new ArrayList<>();
+
+		try {
+			source.discover(task -> {
+				if (published.size() == 2) {
+					throw new IllegalStateException("Injected publish failure");
+				}
+				published.add(new String((byte[]) task, StandardCharsets.UTF_8));
+			});
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		assertEquals(published.size(), 2);
+		assertEquals(new ArrayList<>(source.loadOutstandingRuns().values()),
+				Collections.singletonList(Arrays.asList("task-a", "task-b")));
+		source.completeTask(split("task-a"));
+		source.completeTask(split("task-b"));
+		assertTrue(source.admitRun(2));
+	}
+
+	@Test
+	void interruptedTaskIsNotCompleted() throws Exception {
+		MarkLogicSource source = openSource(new MarkLogicSource() {
+			@Override
+			protected boolean export(ExportSplit split) {
+				return false;
+			}
+		}, sourceConfig("mlSourceOverlapPolicy", "SKIP"), new TestContext());
+		source.registerRun(1, Collections.singletonList("run-1"));
+
+		source.run(split("run-1"));
+
+		assertNull(source.readNext());
+		assertFalse(source.admitRun(2));
+	}
+
+	@Test
+	void concurrentTriggersAdmitOneRunUnderSkip() throws Exception {
+		MarkLogicSource source = openSource(sourceConfig("mlSourceOverlapPolicy", "SKIP"));
+		ExecutorService triggers = Executors.newFixedThreadPool(8);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Object> published = Collections.synchronizedList(new ArrayList<>());
+		List<Future<?>> discoveries = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			discoveries.add(triggers.submit(() -> {
+				start.await();
+				source.discover(published::add);
+				return null;
+			}));
+		}
+		start.countDown();
+		for (Future<?> discovery : discoveries) {
+			discovery.get(10, TimeUnit.SECONDS);
+		}
+		triggers.shutdown();
+		assertEquals(published.size(), 1);
+	}
+
+	@Test
+	void sourceMetricsReportedThroughContext() throws Exception {
+		TestContext context = new TestContext();
+		MarkLogicSource source = openSource(sourceConfig("mlMetricsIntervalMillis", 3600000,
+				"mlSourceOverlapPolicy", "SKIP"), context);
+
+		source.registerRun(1, Collections.singletonList("run-1"));
+		source.admitRun(2);
+		assertEquals(context.metrics.get("export_runs_skipped"), 1.0);
+
+		closeSource();
+		assertEquals(context.metrics.get("documents_exported"), 0.0);
+		assertEquals(context.metrics.get("documents_exported_per_second"), 0.0);
+		assertEquals(context.metrics.get("pending_records"), 0.0);
+		assertEquals(context.metrics.get("active_exports"), 0.0);
+	}
+
+	@Test
+	void noSourceMetricsWhenDisabled() throws Exception {
+		TestContext context = new TestContext();
+		MarkLogicSource source = openSource(sourceConfig("mlSourceOverlapPolicy", "SKIP"), context);
+
+		source.registerRun(1, Collections.singletonList("run-1"));
+		source.admitRun(2);
+		closeSource();
+
+		assertTrue(context.metrics.isEmpty());
+	}
+
+	@Test(timeOut = 30000)
+	void failedTaskStillEnds() throws Exception {
+		int closedPort;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			closedPort = socket.getLocalPort();
+		}
+		MarkLogicSource source = openSource(sourceConfig("mlConnectionPort", closedPort));
+
+		source.prepare(new ExportSplit("unreachable", Collections.singletonList("forest-1"), 1).toBytes());
+
+		assertNull(source.readNext());
+	}
+
+	/*
+	 * A JSON document as ExportListener hands it over, with its collections and last-modified property.
+	 */
+	private static DocumentRecord document(String uri, String lastModified, String... collections) {
+		return (DocumentRecord) Proxy.newProxyInstance(DocumentRecord.class.getClassLoader(),
+				new Class<?>[] {DocumentRecord.class}, (proxy, method, args) -> {
+					switch (method.getName()) {
+						case "getUri":
+							return uri;
+						case "getFormat":
+							return Format.JSON;
+						case "getMetadata":
+							DocumentMetadataHandle metadata = (DocumentMetadataHandle) args[0];
+							metadata.getCollections().addAll(collections);
+							metadata.getProperties().put(new QName("http://marklogic.com/xdmp/property", "last-modified"),
+									lastModified);
+							return metadata;
+						default:
+							throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+}
@@ -0,0 +1,393 @@
+package com.marklogic.pulsar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-memory stand-in for the MarkLogic REST endpoints that the DMSDK WriteBatcher and QueryBatcher use, so
+ * MarkLogicSink and MarkLogicSource can be load tested without a MarkLogic server. It implements:
+ *
+ * GET /v1/internal/forestinfo - the configured number of forests, all on this host.
+ * POST /v1/documents - multipart bulk writes; metadata parts are accepted and ignored.
+ * POST /v1/internal/uris - every stored URI in the requested forest after the "after" URI. The query is not
+ * evaluated; it matches everything.
+ * GET /v1/documents - multipart bulk reads of content, with empty metadata when metadata is asked for.
+ *
+ * Every request can be delayed by a fixed latency, and requests can be failed at random or deterministically
+ * to exercise retries and failure handling. Server-side eval, transforms and DHF flows are not supported.
+ */
+public class MarkLogicStandIn {
+
+	private static final String BOUNDARY = "ML_STAND_IN_BOUNDARY";
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final NavigableMap<String, byte[]> documents = new ConcurrentSkipListMap<>();
+	private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+	private final AtomicLong timestamp = new AtomicLong(16000000000000L);
+	private final AtomicInteger failNext = new AtomicInteger();
+	private final int forestCount;
+	private volatile long latencyMillis;
+	private volatile double errorRate;
+	private volatile int errorStatus = 500;
+
+	public MarkLogicStandIn(int forestCount) throws IOException {
+		this.forestCount = forestCount;
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.setExecutor(executor);
+		server.createContext("/v1/", this::handle);
+	}
+
+	public MarkLogicStandIn start() {
+		server.start();
+		return this;
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public String getHost() {
+		return "localhost";
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public MarkLogicStandIn withLatency(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+		return this;
+	}
+
+	/**
+	 * Fails this fraction of requests, other than forest info, with the error status.
+	 */
+	public MarkLogicStandIn withErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+		return this;
+	}
+
+	/**
+	 * 500 by default. The client retries 503 itself for up to a couple of minutes, which is rarely wanted in a test.
+	 */
+	public MarkLogicStandIn withErrorStatus(int errorStatus) {
+		this.errorStatus = errorStatus;
+		return this;
+	}
+
+	public void failNext(int requestCount) {
+		failNext.set(requestCount);
+	}
+
+	public void putDocument(String uri, byte[] content) {
+		documents.put(uri, content);
+	}
+
+	public Map<String, byte[]> getDocuments() {
+		return Collections.unmodifiableMap(documents);
+	}
+
+	public long getRequestCount(String endpoint) {
+		LongAdder count = requests.get(endpoint);
+		return count != null ? count.sum() : 0;
+	}
+
+	String forestOf(String uri) {
+		return "forest-" + Math.floorMod(uri.hashCode(), forestCount);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String path = exchange.getRequestURI().getPath();
+			String endpoint = exchange.getRequestMethod() + " " + path;
+			requests.computeIfAbsent(endpoint, key -> new LongAdder()).increment();
+			if (latencyMillis > 0) {
+				Thread.sleep(latencyMillis);
+			}
+			if (!path.endsWith("/forestinfo") && shouldFail()) {
+				sendJson(exchange, errorStatus, "{\"errorResponse\":{\"statusCode\":" + errorStatus
+						+ ",\"status\":\"Injected failure\",\"message\":\"Injected by MarkLogicStandIn\"}}");
+				return;
+			}
+			Map<String, List<String>> params = parseParams(exchange.getRequestURI().getRawQuery());
+			byte[] body = readAll(exchange.getRequestBody());
+			if (path.equals("/v1/internal/forestinfo")) {
+				forestInfo(exchange);
+			} else if (path.equals("/v1/internal/uris")) {
+				uris(exchange, params);
+			} else if (path.equals("/v1/documents") && "POST".equals(exchange.getRequestMethod())) {
+				write(exchange, body);
+			} else if (path.equals("/v1/documents") && "GET".equals(exchange.getRequestMethod())) {
+				read(exchange, params);
+			} else if (path.equals("/v1/ping")) {
+				exchange.sendResponseHeaders(204, -1);
+			} else {
+				sendJson(exchange, 501, "{\"errorResponse\":{\"statusCode\":501,\"message\":\"Not supported by MarkLogicStandIn: "
+						+ endpoint + "\"}}");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private boolean shouldFail() {
+		int remaining;
+		while ((remaining = failNext.get()) > 0) {
+			if (failNext.compareAndSet(remaining, remaining - 1)) {
+				return true;
+			}
+		}
+		return errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+	}
+
+	private void forestInfo(HttpExchange exchange) throws IOException {
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < forestCount; i++) {
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("{\"id\":\"").append(1000 + i).append("\",\"name\":\"forest-").append(i)
+					.append("\",\"database\":\"Documents\",\"host\":\"").append(getHost())
+					.append("\",\"updatesAllowed\":\"all\"}");
+		}
+		sendJson(exchange, 200, json.append(']').toString());
+	}
+
+	private void uris(HttpExchange exchange, Map<String, List<String>> params) throws IOException {
+		String forest = first(params, "forest-name");
+		String after = first(params, "after");
+		String pageLength = first(params, "pageLength");
+		int limit = pageLength != null ? Integer.parseInt(pageLength) : 1000;
+		NavigableMap<String, byte[]> candidates = after != null && after.length() > 0
+				? documents.tailMap(after, false) : documents;
+		StringBuilder uris = new StringBuilder();
+		int count = 0;
+		for (String uri : candidates.keySet()) {
+			if (count == limit) {
+				break;
+			}
+			if (forest == null || forest.equals(forestOf(uri))) {
+				uris.append(uri).append('\n');
+				count++;
+			}
+		}
+		exchange.getResponseHeaders().add("ML-Effective-Timestamp", Long.toString(timestamp.get()));
+		send(exchange, 200, "text/uri-list", uris.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void write(HttpExchange exchange, byte[] body) throws IOException {
+		String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+		StringBuilder json = new StringBuilder("{\"documents\":[");
+		int written = 0;
+		for (Part part : parseMultipart(body, boundaryOf(contentType))) {
+			String disposition = part.headers.getOrDefault("content-disposition", "");
+			String uri = dispositionValue(disposition, "filename");
+			if (uri == null || "metadata".equals(dispositionValue(disposition, "category"))) {
+				continue;
+			}
+			documents.put(uri, part.body);
+			if (written++ > 0) {
+				json.append(',');
+			}
+			json.append("{\"uri\":\"").append(uri.replace("\\", "\\\\").replace("\"", "\\\""))
+					.append("\",\"mime-type\":\"").append(part.headers.getOrDefault("content-type", "application/json"))
+					.append("\",\"category\":[\"content\"]}");
+		}
+		timestamp.incrementAndGet();
+		sendJson(exchange, 200, json.append("]}").toString());
+	}
+
+	private void read(HttpExchange exchange, Map<String, List<String>> params) throws IOException {
+		List<String> categories = params.getOrDefault("category", Collections.singletonList("content"));
+		boolean withMetadata = categories.stream().anyMatch(category -> !"content".equals(category));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (String uri : params.getOrDefault("uri", Collections.emptyList())) {
+			byte[] content = documents.get(uri);
+			if (content == null) {
+				continue;
+			}
+			if (withMetadata) {
+				writePart(out, uri, "metadata", "application/json", "json",
+						"{\"collections\":[],\"permissions\":[],\"properties\":{},\"quality\":0,\"metadataValues\":{}}"
+								.getBytes(StandardCharsets.UTF_8));
+			}
+			if (categories.contains("content")) {
+				writePart(out, uri, "content", "application/json", "json", content);
+			}
+		}
+		out.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+		exchange.getResponseHeaders().add("ML-Effective-Timestamp", Long.toString(timestamp.get()));
+		send(exchange, 200, "multipart/mixed; boundary=" + BOUNDARY, out.toByteArray());
+	}
+
+	private void writePart(OutputStream out, String uri, String category, String mimeType, String format, byte[] body)
+			throws IOException {
+		String headers = "--" + BOUNDARY + "\r\n"
+				+ "Content-Type: " + mimeType + "\r\n"
+				+ "Content-Disposition: attachment; filename=\"" + uri + "\"; category=" + category + "; format=" + format + "\r\n"
+				+ "vnd.marklogic.document-format: " + format + "\r\n"
+				+ "Content-Length: " + body.length + "\r\n\r\n";
+		out.write(headers.getBytes(StandardCharsets.UTF_8));
+		out.write(body);
+		out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+		send(exchange, status, "application/json", json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+		exchange.getResponseHeaders().add("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+		if (body.length > 0) {
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		}
+	}
+
+	static class Part {
+		final Map<String, String> headers = new LinkedHashMap<>();
+		byte[] body;
+	}
+
+	static String boundaryOf(String contentType) {
+		String boundary = contentType != null ? dispositionValue(contentType, "boundary") : null;
+		if (boundary == null) {
+			throw new IllegalArgumentException("Not a multipart request: " + contentType);
+		}
+		return boundary;
+	}
+
+	/*
+	 * The value of a parameter such as filename="/a.json" or boundary=xyz in a header value.
+	 */
+	static String dispositionValue(String header, String name) {
+		for (String token : header.split(";")) {
+			String trimmed = token.trim();
+			if (trimmed.regionMatches(true, 0, name + "=", 0, name.length() + 1)) {
+				String value = trimmed.substring(name.length() + 1);
+				return value.startsWith("\"") && value.endsWith("\"") && value.length() > 1
+						? value.substring(1, value.length() - 1) : value;
+			}
+		}
+		return null;
+	}
+
+	static List<Part> parseMultipart(byte[] body, String boundary) {
+		byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.UTF_8);
+		List<Part> parts = new ArrayList<>();
+		int start = indexOf(body, delimiter, 0);
+		while (start >= 0) {
+			int headerStart = start + delimiter.length;
+			if (headerStart + 1 < body.length && body[headerStart] == '-' && body[headerStart + 1] == '-') {
+				break;
+			}
+			headerStart = skipLineBreak(body, headerStart);
+			int next = indexOf(body, delimiter, headerStart);
+			if (next < 0) {
+				break;
+			}
+			int headerEnd = indexOf(body, "\r\n\r\n".getBytes(StandardCharsets.UTF_8), headerStart);
+			Part part = new Part();
+			if (headerEnd >= 0 && headerEnd < next) {
+				String headers = new String(body, headerStart, headerEnd - headerStart, StandardCharsets.UTF_8);
+				for (String line : headers.split("\r\n")) {
+					int colon = line.indexOf(':');
+					if (colon > 0) {
+						part.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+					}
+				}
+				int bodyEnd = next >= 2 && body[next - 2] == '\r' && body[next - 1] == '\n' ? next - 2 : next;
+				part.body = new byte[Math.max(bodyEnd - (headerEnd + 4), 0)];
+				System.arraycopy(body, headerEnd + 4, part.body, 0, part.body.length);
+				parts.add(part);
+			}
+			start = next;
+		}
+		return parts;
+	}
+
+	private static int skipLineBreak(byte[] body, int index) {
+		if (index + 1 < body.length && body[index] == '\r' && body[index + 1] == '\n') {
+			return index + 2;
+		}
+		return index;
+	}
+
+	private static int indexOf(byte[] data, byte[] pattern, int from) {
+		outer:
+		for (int i = from; i <= data.length - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (data[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static Map<String, List<String>> parseParams(String rawQuery) throws IOException {
+		Map<String, List<String>> params = new LinkedHashMap<>();
+		if (rawQuery == null) {
+			return params;
+		}
+		for (String pair : rawQuery.split("&")) {
+			int eq = pair.indexOf('=');
+			String name = URLDecoder.decode(eq >= 0 ? pair.substring(0, eq) : pair, "UTF-8");
+			String value = eq >= 0 ? URLDecoder.decode(pair.substring(eq + 1), "UTF-8") : "";
+			params.computeIfAbsent(name, key -> new ArrayList<>()).add(value);
+		}
+		return params;
+	}
+
+	private static String first(Map<String, List<String>> params, String name) {
+		List<String> values = params.get(name);
+		return values != null && !values.isEmpty() ? values.get(0) : null;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * A random URI, for tests that only need some documents to exist.
+	 */
+	public static String randomUri() {
+		return "/stand-in/" + UUID.randomUUID() + ".json";
+	}
+}
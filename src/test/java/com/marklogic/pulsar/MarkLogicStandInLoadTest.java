@@ -0,0 +1,217 @@
+package com.marklogic.pulsar;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.pulsar.functions.api.Record;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.DatabaseClientFactory;
+import com.marklogic.client.datamovement.DataMovementManager;
+import com.marklogic.client.datamovement.ExportListener;
+import com.marklogic.client.datamovement.QueryBatcher;
+import com.marklogic.client.datamovement.WriteBatcher;
+import com.marklogic.client.io.BytesHandle;
+import com.marklogic.client.io.Format;
+
+/**
+ * Drives the DMSDK batchers, and the sink and source built on them, against MarkLogicStandIn. These are in the "load" group, which is only run when asked
+ * for: mvn test -DexcludedGroups= -Dgroups=load
+ */
+@Test(groups = "load")
+public class MarkLogicStandInLoadTest {
+
+	private static final int DOCUMENTS = 2000;
+
+	private MarkLogicStandIn standIn;
+	private DatabaseClient client;
+	private DataMovementManager dmm;
+
+	@BeforeMethod(alwaysRun = true)
+	void start() throws Exception {
+		standIn = new MarkLogicStandIn(3).withLatency(5).start();
+		client = DatabaseClientFactory.newClient(standIn.getHost(), standIn.getPort(),
+				new DatabaseClientFactory.DigestAuthContext(TestHelper.MLUSER, TestHelper.MLPWD));
+		dmm = client.newDataMovementManager();
+	}
+
+	@AfterMethod(alwaysRun = true)
+	void stop() {
+		dmm.release();
+		client.release();
+		standIn.stop();
+	}
+
+	public void writeBatcherWritesEveryDocument() {
+		WriteBatcher batcher = dmm.newWriteBatcher().withBatchSize(100).withThreadCount(4);
+		dmm.startJob(batcher);
+		for (int i = 0; i < DOCUMENTS; i++) {
+			batcher.add("/load/" + i + ".json", new BytesHandle(("{\"id\":" + i + "}").getBytes(StandardCharsets.UTF_8))
+					.withFormat(Format.JSON));
+		}
+		batcher.flushAndWait();
+		dmm.stopJob(batcher);
+
+		assertEquals(standIn.getDocuments().size(), DOCUMENTS);
+		assertEquals(new String(standIn.getDocuments().get("/load/7.json"), StandardCharsets.UTF_8), "{\"id\":7}");
+	}
+
+	public void injectedFailuresReachTheFailureListener() {
+		AtomicInteger failedBatches = new AtomicInteger();
+		WriteBatcher batcher = dmm.newWriteBatcher().withBatchSize(10).withThreadCount(1)
+				.onBatchFailure((batch, failure) -> failedBatches.incrementAndGet());
+		dmm.startJob(batcher);
+		standIn.failNext(2);
+		for (int i = 0; i < 50; i++) {
+			batcher.add("/fail/" + i + ".json", new BytesHandle("{}".getBytes(StandardCharsets.UTF_8)).withFormat(Format.JSON));
+		}
+		batcher.flushAndWait();
+		dmm.stopJob(batcher);
+
+		assertEquals(failedBatches.get(), 2);
+		assertEquals(standIn.getDocuments().size(), 30);
+	}
+
+	public void queryBatcherExportsEveryForest() {
+		for (int i = 0; i < DOCUMENTS; i++) {
+			standIn.putDocument("/export/" + i + ".json", ("{\"id\":" + i + "}").getBytes(StandardCharsets.UTF_8));
+		}
+		Set<String> exported = ConcurrentHashMap.newKeySet();
+		QueryBatcher batcher = dmm.newQueryBatcher(client.newQueryManager().newStructuredQueryBuilder().and())
+				.withBatchSize(100).withThreadCount(4).withConsistentSnapshot()
+				.onUrisReady(new ExportListener().withConsistentSnapshot().onDocumentReady(document -> exported.add(document.getUri())));
+		dmm.startJob(batcher);
+		assertTrue(batcher.awaitCompletion());
+		dmm.stopJob(batcher);
+
+		assertEquals(exported.size(), DOCUMENTS);
+		assertTrue(standIn.getRequestCount("POST /v1/internal/uris") >= 3);
+	}
+
+	private Map<String, Object> connectorConfig() {
+		Map<String, Object> config = TestHelper.createMap();
+		config.put("mlConnectionHost", standIn.getHost());
+		config.put("mlConnectionPort", standIn.getPort());
+		config.put("mlMetricsIntervalMillis", 0);
+		return config;
+	}
+
+	private List<TestRecord> writeThroughSink(Map<String, Object> config, int count) throws Exception {
+		MarkLogicSink sink = new MarkLogicSink();
+		sink.open(config, new TestContext().asSinkContext());
+		List<TestRecord> records = new ArrayList<>();
+		try {
+			for (int i = 0; i < count; i++) {
+				TestRecord record = new TestRecord(i);
+				records.add(record);
+				sink.write(record);
+			}
+		} finally {
+			sink.close();
+		}
+		for (TestRecord record : records) {
+			assertEquals(record.getOutcomes(), 1, "record " + record.getRecordSequence().get());
+		}
+		return records;
+	}
+
+	private Map<String, Object> ackOnCommitConfig(int retryAttempts) {
+		Map<String, Object> config = connectorConfig();
+		config.put("mlAckOnCommit", true);
+		config.put("dmsdkBatchSize", 10);
+		config.put("mlRetryMaxAttempts", retryAttempts);
+		config.put("mlRetryInitialBackoffMillis", 10);
+		config.put("mlRetryMaxBackoffMillis", 50);
+		return config;
+	}
+
+	/*
+	 * Without retries the three failed batches give up at once, so their records are failed and the rest acked.
+	 */
+	public void sinkAcksRecordsOnlyOnceWritten() throws Exception {
+		Map<String, Object> config = ackOnCommitConfig(0);
+		standIn.failNext(3);
+
+		List<TestRecord> records = writeThroughSink(config, 100);
+
+		assertEquals(records.stream().filter(record -> record.acked).count(), 70);
+		assertEquals(records.stream().filter(record -> record.failed).count(), 30);
+		assertEquals(standIn.getDocuments().size(), 70);
+	}
+
+	public void sinkAcksOrFailsEveryRecordUnderRandomFailures() throws Exception {
+		Map<String, Object> config = ackOnCommitConfig(2);
+		config.put("dmsdkThreadCount", 4);
+		standIn.withErrorRate(0.2);
+
+		List<TestRecord> records = writeThroughSink(config, DOCUMENTS);
+
+		long acked = records.stream().filter(record -> record.acked).count();
+		assertEquals(acked + records.stream().filter(record -> record.failed).count(), DOCUMENTS);
+		assertTrue(acked > 0);
+		assertEquals(standIn.getDocuments().size(), acked);
+	}
+
+	private List<Record<byte[]>> exportThroughSource(Map<String, Object> config, boolean ack) throws Exception {
+		for (int i = 0; i < DOCUMENTS; i++) {
+			standIn.putDocument("/source/" + i + ".json", ("{\"id\":" + i + "}").getBytes(StandardCharsets.UTF_8));
+		}
+		config.put("dmsdkBatchSize", 100);
+		config.put("dmsdkThreadCount", 4);
+		config.put("dmsdkSourceQuery", "{\"collectionQuery\":{\"uris\":[\"customers\"]}}");
+		MarkLogicSource source = new MarkLogicSource();
+		source.open(config, new TestContext().asSourceContext());
+		List<Record<byte[]>> records = new ArrayList<>();
+		try {
+			source.prepare(new ExportSplit("load", new ArrayList<>(), 1).toBytes());
+			Record<byte[]> record;
+			while ((record = source.readNext()) != null) {
+				records.add(record);
+				if (ack) {
+					record.ack();
+				}
+			}
+		} finally {
+			records.forEach(Record::ack);
+			source.close();
+		}
+		return records;
+	}
+
+	/*
+	 * The stand-in does not evaluate queries, so every document it holds matches.
+	 */
+	@Test(timeOut = 60000)
+	public void sourceEmitsEveryDocumentOfTheQuery() throws Exception {
+		List<Record<byte[]>> records = exportThroughSource(connectorConfig(), true);
+
+		Set<String> emitted = ConcurrentHashMap.newKeySet();
+		records.forEach(record -> emitted.add(new String(record.getValue(), StandardCharsets.UTF_8)));
+		assertEquals(records.size(), DOCUMENTS);
+		assertEquals(emitted.size(), DOCUMENTS);
+		assertTrue(emitted.contains("{\"id\":7}"));
+	}
+
+	/*
+	 * A run with no checkpoint or progress to commit ends without waiting for its records to be acked.
+	 */
+	@Test(timeOut = 30000)
+	public void plainExportDoesNotWaitForAcks() throws Exception {
+		Map<String, Object> config = connectorConfig();
+		config.put("mlSourceMaxPendingRecords", DOCUMENTS);
+		config.put("mlSourceAckTimeoutMillis", 600000);
+
+		assertEquals(exportThroughSource(config, false).size(), DOCUMENTS);
+	}
+}
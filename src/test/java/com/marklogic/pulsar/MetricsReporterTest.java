@@ -0,0 +1,40 @@
+package com.marklogic.pulsar;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+public class MetricsReporterTest {
+
+	@Test
+	void countersReportedPerInterval() {
+		Map<String, Double> recorded = new HashMap<>();
+		MetricsReporter metrics = new MetricsReporter(recorded::put);
+
+		metrics.increment("records_in");
+		metrics.increment("records_in", 2);
+		metrics.report();
+		assertEquals(recorded.get("records_in"), 3.0);
+
+		metrics.report();
+		assertEquals(recorded.get("records_in"), 0.0);
+	}
+
+	@Test
+	void gaugesAndRatesReported() {
+		Map<String, Double> recorded = new HashMap<>();
+		MetricsReporter metrics = new MetricsReporter(recorded::put);
+		metrics.withRate("documents_exported");
+		metrics.gauge("pending_records", () -> 7);
+
+		metrics.increment("documents_exported", 100);
+		metrics.report();
+
+		assertEquals(recorded.get("pending_records"), 7.0);
+		assertTrue(recorded.get("documents_exported_per_second") > 0);
+	}
+}
@@ -2,6 +2,8 @@ package com.marklogic.pulsar;
 
 import com.marklogic.client.DatabaseClient;
 import com.marklogic.client.datamovement.*;
+import com.marklogic.client.datamovement.impl.WriteBatchImpl;
+import com.marklogic.client.datamovement.impl.WriteEventImpl;
 import com.marklogic.client.document.DocumentWriteOperation;
 import com.marklogic.client.document.ServerTransform;
 import com.marklogic.client.io.DocumentMetadataHandle;
@@ -18,10 +20,28 @@ import java.util.stream.Stream;
 public class MockWriteBatcher implements WriteBatcher {
 
 	public String jobId;
+	private DocumentMetadataHandle defaultMetadata;
 
 	@Override
 	public WriteBatcher withDefaultMetadata(DocumentMetadataHandle handle) {
-		return null;
+		defaultMetadata = handle;
+		return this;
+	}
+
+	/**
+	 * A batch of the given URIs as a WriteBatcher would pass it to its listeners. With default metadata, the batch
+	 * starts with the metadata item that the WriteBatcher sends ahead of the documents, which has no URI or content.
+	 */
+	public WriteBatchImpl batchOf(long jobBatchNumber, String... uris) {
+		int offset = defaultMetadata != null ? 1 : 0;
+		WriteEvent[] events = new WriteEvent[offset + uris.length];
+		if (defaultMetadata != null) {
+			events[0] = new WriteEventImpl().withMetadata(defaultMetadata);
+		}
+		for (int i = 0; i < uris.length; i++) {
+			events[offset + i] = new WriteEventImpl().withTargetUri(uris[i]);
+		}
+		return new WriteBatchImpl().withJobBatchNumber(jobBatchNumber).withBatcher(this).withItems(events);
 	}
 
 	@Override
@@ -0,0 +1,117 @@
+package com.marklogic.pulsar;
+
+import static org.testng.Assert.assertEquals;
+
+import org.apache.pulsar.functions.api.Record;
+import org.testng.annotations.Test;
+
+import com.marklogic.client.datamovement.WriteEvent;
+import com.marklogic.client.datamovement.impl.WriteBatchImpl;
+import com.marklogic.client.datamovement.impl.WriteEventImpl;
+import com.marklogic.client.io.DocumentMetadataHandle;
+
+public class PendingRecordTrackerTest {
+
+	@Test
+	void ackOnlyRecordsInBatch() {
+		PendingRecordTracker tracker = new PendingRecordTracker();
+		TestRecord r1 = new TestRecord();
+		TestRecord r2 = new TestRecord();
+		tracker.track("uri1", r1);
+		tracker.track("uri2", r2);
+
+		tracker.ack(batchOf("uri1"));
+
+		assertEquals(1, r1.acks);
+		assertEquals(0, r2.acks);
+		assertEquals(1, tracker.size());
+	}
+
+	@Test
+	void failReleasesRecords() {
+		PendingRecordTracker tracker = new PendingRecordTracker();
+		TestRecord r1 = new TestRecord();
+		tracker.track("uri1", r1);
+
+		tracker.fail(batchOf("uri1"));
+
+		assertEquals(0, r1.acks);
+		assertEquals(1, r1.fails);
+		assertEquals(0, tracker.size());
+	}
+
+	@Test
+	void duplicateUrisAreReleasedInOrder() {
+		PendingRecordTracker tracker = new PendingRecordTracker();
+		TestRecord r1 = new TestRecord();
+		TestRecord r2 = new TestRecord();
+		tracker.track("uri1", r1);
+		tracker.track("uri1", r2);
+
+		tracker.ack(batchOf("uri1"));
+		assertEquals(1, r1.acks);
+		assertEquals(0, r2.acks);
+
+		tracker.failAll();
+		assertEquals(1, r2.fails);
+		assertEquals(0, tracker.size());
+	}
+
+	@Test
+	void untrackDoesNotAckOrFail() {
+		PendingRecordTracker tracker = new PendingRecordTracker();
+		TestRecord r1 = new TestRecord();
+		tracker.track("uri1", r1);
+		tracker.untrack("uri1", r1);
+
+		tracker.ack(batchOf("uri1"));
+		assertEquals(0, r1.acks);
+		assertEquals(0, tracker.size());
+	}
+
+	@Test
+	void defaultMetadataItemIsSkipped() {
+		PendingRecordTracker tracker = new PendingRecordTracker();
+		TestRecord r1 = new TestRecord();
+		TestRecord r2 = new TestRecord();
+		tracker.track("uri1", r1);
+		tracker.track("uri2", r2);
+		MockWriteBatcher batcher = new MockWriteBatcher();
+		batcher.withDefaultMetadata(new DocumentMetadataHandle());
+
+		tracker.ack(batcher.batchOf(1, "uri1"));
+		tracker.fail(batcher.batchOf(2, "uri2"));
+
+		assertEquals(1, r1.acks);
+		assertEquals(1, r2.fails);
+		assertEquals(0, tracker.size());
+	}
+
+	private WriteBatchImpl batchOf(String... uris) {
+		WriteEvent[] events = new WriteEvent[uris.length];
+		for (int i = 0; i < uris.length; i++) {
+			events[i] = new WriteEventImpl().withTargetUri(uris[i]);
+		}
+		return new WriteBatchImpl().withBatcher(new MockWriteBatcher()).withItems(events);
+	}
+
+	static class TestRecord implements Record<byte[]> {
+		int acks;
+		int fails;
+
+		@Override
+		public byte[] getValue() {
+			return new byte[0];
+		}
+
+		@Override
+		public void ack() {
+			acks++;
+		}
+
+		@Override
+		public void fail() {
+			fails++;
+		}
+	}
+}
@@ -3,13 +3,19 @@ package com.marklogic.pulsar;
 import com.marklogic.client.datamovement.WriteEvent;
 import com.marklogic.client.datamovement.impl.WriteBatchImpl;
 import com.marklogic.client.datamovement.impl.WriteEventImpl;
+import com.marklogic.client.io.DocumentMetadataHandle;
 import com.marklogic.hub.flow.FlowInputs;
 import org.testng.annotations.Test;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class RunFlowWriteBatchListenerTest {
 
@@ -43,4 +49,123 @@ public class RunFlowWriteBatchListenerTest {
 		assertEquals("cts.documentQuery(['uri1','uri2','uri3'])", options.get("sourceQuery"),
 			"The source query is expected to constrain on each of the documents in the WriteBatch");
 	}
+
+	@Test
+	void flowsRunOnFlowExecutor() throws InterruptedException {
+		Map<Long, String> threads = new ConcurrentHashMap<>();
+		RunFlowWriteBatchListener listener = new RunFlowWriteBatchListener("myFlow", null, null) {
+			@Override
+			protected void runFlow(FlowInputs inputs, long batchNumber) {
+				threads.put(batchNumber, Thread.currentThread().getName());
+			}
+		}.withFlowExecutor(2, 4);
+
+		MockWriteBatcher mockWriteBatcher = new MockWriteBatcher();
+		mockWriteBatcher.jobId = "job123";
+		for (long i = 1; i <= 3; i++) {
+			listener.processEvent(new WriteBatchImpl()
+				.withJobBatchNumber(i)
+				.withBatcher(mockWriteBatcher)
+				.withItems(new WriteEvent[]{new WriteEventImpl().withTargetUri("uri" + i)}));
+		}
+
+		assertTrue(listener.shutdown(10, TimeUnit.SECONDS));
+		assertEquals(3, threads.size());
+		assertEquals(3, listener.getFlowsSubmitted().get());
+		assertTrue(threads.get(1L).startsWith("dhf-flow-myFlow-"));
+	}
+
+	@Test
+	void batchesCoalescedIntoOneFlow() throws InterruptedException {
+		List<FlowInputs> flows = new CopyOnWriteArrayList<>();
+		RunFlowWriteBatchListener listener = new RunFlowWriteBatchListener("myFlow", null, null) {
+			@Override
+			protected void runFlow(FlowInputs inputs, long batchNumber) {
+				flows.add(inputs);
+			}
+		}.withCoalescing(4, 60000);
+
+		MockWriteBatcher mockWriteBatcher = new MockWriteBatcher();
+		mockWriteBatcher.jobId = "job123";
+		listener.processEvent(batch(mockWriteBatcher, 1, "uri1", "uri2", "uri3"));
+		assertEquals(0, flows.size());
+		listener.processEvent(batch(mockWriteBatcher, 2, "uri4", "uri5"));
+		assertEquals(1, flows.size());
+		assertEquals("job123-1", flows.get(0).getJobId());
+		assertEquals("cts.documentQuery(['uri1','uri2','uri3','uri4','uri5'])", flows.get(0).getOptions().get("sourceQuery"));
+
+		listener.processEvent(batch(mockWriteBatcher, 3, "uri6"));
+		assertTrue(listener.shutdown(10, TimeUnit.SECONDS));
+		assertEquals(2, flows.size());
+		assertEquals("cts.documentQuery(['uri6'])", flows.get(1).getOptions().get("sourceQuery"));
+	}
+
+	@Test
+	void windowFlushedAfterMaxDelay() throws InterruptedException {
+		List<FlowInputs> flows = new CopyOnWriteArrayList<>();
+		RunFlowWriteBatchListener listener = new RunFlowWriteBatchListener("myFlow", null, null) {
+			@Override
+			protected void runFlow(FlowInputs inputs, long batchNumber) {
+				flows.add(inputs);
+			}
+		}.withCoalescing(100, 50);
+
+		MockWriteBatcher mockWriteBatcher = new MockWriteBatcher();
+		mockWriteBatcher.jobId = "job123";
+		listener.processEvent(batch(mockWriteBatcher, 1, "uri1"));
+		for (int i = 0; i < 100 && flows.isEmpty(); i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(1, flows.size());
+		listener.shutdown(10, TimeUnit.SECONDS);
+	}
+
+	private WriteBatchImpl batch(MockWriteBatcher batcher, long number, String... uris) {
+		WriteEvent[] events = new WriteEvent[uris.length];
+		for (int i = 0; i < uris.length; i++) {
+			events[i] = new WriteEventImpl().withTargetUri(uris[i]);
+		}
+		return new WriteBatchImpl().withJobBatchNumber(number).withBatcher(batcher).withItems(events);
+	}
+
+	@Test
+	void defaultMetadataLeftOutOfSourceQuery() throws InterruptedException {
+		RunFlowWriteBatchListener listener = new RunFlowWriteBatchListener("myFlow", null, null);
+		MockWriteBatcher mockWriteBatcher = new MockWriteBatcher();
+		mockWriteBatcher.jobId = "job123";
+		mockWriteBatcher.withDefaultMetadata(new DocumentMetadataHandle());
+
+		assertEquals("cts.documentQuery(['uri1','uri2'])",
+			listener.buildFlowInputs(mockWriteBatcher.batchOf(1, "uri1", "uri2")).getOptions().get("sourceQuery"));
+
+		List<FlowInputs> flows = new CopyOnWriteArrayList<>();
+		RunFlowWriteBatchListener coalescing = new RunFlowWriteBatchListener("myFlow", null, null) {
+			@Override
+			protected void runFlow(FlowInputs inputs, long batchNumber) {
+				flows.add(inputs);
+			}
+		}.withCoalescing(2, 60000);
+		coalescing.processEvent(mockWriteBatcher.batchOf(1, "uri1"));
+		assertEquals(0, flows.size(), "The default metadata item does not count towards the window");
+		coalescing.processEvent(mockWriteBatcher.batchOf(2, "uri2"));
+		assertTrue(coalescing.shutdown(10, TimeUnit.SECONDS));
+
+		assertEquals(1, flows.size());
+		assertEquals("cts.documentQuery(['uri1','uri2'])", flows.get(0).getOptions().get("sourceQuery"));
+	}
+
+	@Test
+	void sourceQueryEscapesUris() {
+		RunFlowWriteBatchListener listener = new RunFlowWriteBatchListener("myFlow", null, null);
+		assertEquals("cts.documentQuery(['/it\\'s','a\\\\b'])",
+			listener.buildSourceQuery(Arrays.asList("/it's", "a\\b")));
+	}
+
+	@Test
+	void serializedSourceQuery() {
+		RunFlowWriteBatchListener listener = new RunFlowWriteBatchListener("myFlow", null, null)
+			.setSerializedSourceQuery(true);
+		assertEquals("cts.query({\"documentQuery\":{\"uris\":[\"uri1\",\"say \\\"hi\\\"\"]}})",
+			listener.buildSourceQuery(Arrays.asList("uri1", "say \"hi\"")));
+	}
 }
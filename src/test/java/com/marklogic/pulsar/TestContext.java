@@ -0,0 +1,84 @@
+package com.marklogic.pulsar;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.pulsar.io.core.SinkContext;
+import org.apache.pulsar.io.core.SourceContext;
+
+/**
+ * In-memory state, counters and metrics behind a SourceContext or SinkContext. Methods the connectors do not use
+ * return null or zero.
+ */
+public class TestContext {
+
+	final Map<String, ByteBuffer> state = new ConcurrentHashMap<>();
+	final Map<String, Long> counters = new ConcurrentHashMap<>();
+	final Map<String, Double> metrics = new ConcurrentHashMap<>();
+
+	public SourceContext asSourceContext() {
+		return as(SourceContext.class);
+	}
+
+	public SinkContext asSinkContext() {
+		return as(SinkContext.class);
+	}
+
+	/*
+	 * incrCounter reads the counter and then writes it back instead of updating it atomically, so that callers
+	 * racing on a counter are caught.
+	 */
+	private <T> T as(Class<T> type) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getState":
+					ByteBuffer value = state.get((String) args[0]);
+					return value != null ? value.duplicate() : null;
+				case "putState":
+					state.put((String) args[0], (ByteBuffer) args[1]);
+					return null;
+				case "getCounter":
+					return counters.getOrDefault((String) args[0], 0L);
+				case "incrCounter":
+					long current = counters.getOrDefault((String) args[0], 0L);
+					Thread.yield();
+					counters.put((String) args[0], current + (Long) args[1]);
+					return null;
+				case "recordMetric":
+					metrics.put((String) args[0], (Double) args[1]);
+					return null;
+				case "getInstanceId":
+				case "getNumInstances":
+					return 0;
+				case "getTenant":
+				case "getNamespace":
+				case "getSourceName":
+				case "getSinkName":
+					return "test";
+				case "toString":
+					return "TestContext";
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == args[0];
+				default:
+					return defaultValue(method.getReturnType());
+			}
+		}));
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) {
+			return false;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		} else if (type == double.class) {
+			return 0.0;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,58 @@
+package com.marklogic.pulsar;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.pulsar.functions.api.Record;
+
+/**
+ * A JSON record for the sink that remembers whether it was acked or failed, and how many times either happened.
+ */
+public class TestRecord implements Record<byte[]> {
+
+	private final long sequence;
+	private final AtomicInteger outcomes = new AtomicInteger();
+	volatile boolean acked;
+	volatile boolean failed;
+
+	public TestRecord(long sequence) {
+		this.sequence = sequence;
+	}
+
+	@Override
+	public byte[] getValue() {
+		return ("{\"id\":" + sequence + "}").getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public Optional<String> getTopicName() {
+		return Optional.of("persistent://public/default/test");
+	}
+
+	@Override
+	public Optional<String> getPartitionId() {
+		return Optional.of("0");
+	}
+
+	@Override
+	public Optional<Long> getRecordSequence() {
+		return Optional.of(sequence);
+	}
+
+	@Override
+	public void ack() {
+		acked = true;
+		outcomes.incrementAndGet();
+	}
+
+	@Override
+	public void fail() {
+		failed = true;
+		outcomes.incrementAndGet();
+	}
+
+	public int getOutcomes() {
+		return outcomes.get();
+	}
+}